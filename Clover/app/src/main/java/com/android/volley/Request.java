@@ -25,10 +25,13 @@ import android.text.TextUtils;
 
 import com.android.volley.VolleyLog.MarkerLog;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * Base class for all network requests.
@@ -535,6 +538,26 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mResponseDelivered;
     }
 
+    /**
+     * Returns true if the response body should be handed to {@link #parseNetworkStream}
+     * while it is downloading, instead of being buffered into {@link NetworkResponse#data}.
+     * Streamed responses have an empty data array and should not be cached.
+     */
+    public boolean isStreamingResponse() {
+        return false;
+    }
+
+    /**
+     * Subclasses that return true from {@link #isStreamingResponse()} implement this to
+     * read the body straight from the connection. This method is called from a worker
+     * thread, before {@link #parseNetworkResponse} is called with the same response.
+     * @param response Response from the network, without data
+     * @param stream The body of the response, closed for you
+     * @throws IOException when reading from the connection failed
+     */
+    public void parseNetworkStream(NetworkResponse response, InputStream stream) throws IOException {
+    }
+
     /**
      * Subclasses must implement this to parse the raw network response
      * and return an appropriate response type. This method will be
@@ -578,9 +601,27 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         }
     }
 
+    /**
+     * Returns the executor to read the cache entry of this request and parse it on, or null to
+     * do that on the cache dispatcher thread. For requests of which parsing takes long, so other
+     * requests do not wait for it, and cache reads of these requests run in parallel.
+     */
+    public Executor getParseExecutor() {
+        return null;
+    }
+
+    /**
+     * Returns true if this request should be served before the older requests of the same
+     * priority, false by default. Used for requests of which the newest is the most relevant.
+     */
+    public boolean isLifo() {
+        return false;
+    }
+
     /**
      * Our comparator sorts from high to low priority, and secondarily by
-     * sequence number to provide FIFO ordering.
+     * sequence number to provide FIFO ordering, or LIFO ordering for requests that
+     * are {@link #isLifo()}. LIFO requests go before FIFO requests of the same priority.
      */
     @Override
     public int compareTo(Request<T> other) {
@@ -588,10 +629,17 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         Priority right = other.getPriority();
 
         // High-priority requests are "lesser" so they are sorted to the front.
-        // Equal priorities are sorted by sequence number to provide FIFO ordering.
-        return left == right ?
-                this.mSequence - other.mSequence :
-                right.ordinal() - left.ordinal();
+        if (left != right) {
+            return right.ordinal() - left.ordinal();
+        }
+
+        boolean lifo = isLifo();
+        if (lifo != other.isLifo()) {
+            return lifo ? -1 : 1;
+        }
+
+        // Equal priorities are sorted by sequence number to provide FIFO or LIFO ordering.
+        return lifo ? other.mSequence - this.mSequence : this.mSequence - other.mSequence;
     }
 
     @Override
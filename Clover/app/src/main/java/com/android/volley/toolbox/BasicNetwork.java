@@ -116,6 +116,18 @@ public class BasicNetwork implements Network {
                             entry.responseHeaders, true);
                 }
 
+                // Streaming requests read the body themselves while it is downloading.
+                if (request.isStreamingResponse() && statusCode >= 200 && statusCode <= 299
+                        && httpResponse.getEntity() != null) {
+                    NetworkResponse networkResponse = new NetworkResponse(statusCode, new byte[0],
+                            responseHeaders, false);
+                    streamEntity(request, networkResponse, httpResponse.getEntity());
+
+                    long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
+                    logSlowRequests(requestLifetime, request, null, statusLine);
+                    return networkResponse;
+                }
+
                 // Some responses such as 204s do not have content.  We must check.
                 if (httpResponse.getEntity() != null) {
                   responseContents = entityToBytes(httpResponse.getEntity());
@@ -220,6 +232,24 @@ public class BasicNetwork implements Network {
         VolleyLog.v("HTTP ERROR(%s) %d ms to fetch %s", what, (now - start), url);
     }
 
+    /** Hands the contents of HttpEntity to the request while it is downloading. */
+    private void streamEntity(Request<?> request, NetworkResponse response, HttpEntity entity)
+            throws IOException, ServerError {
+        try {
+            InputStream in = entity.getContent();
+            if (in == null) {
+                throw new ServerError();
+            }
+            request.parseNetworkStream(response, in);
+        } finally {
+            try {
+                entity.consumeContent();
+            } catch (IOException e) {
+                VolleyLog.v("Error occured when calling consumingContent");
+            }
+        }
+    }
+
     /** Reads the contents of HttpEntity into a byte[]. */
     private byte[] entityToBytes(HttpEntity entity) throws IOException, ServerError {
         PoolingByteArrayOutputStream bytes =
@@ -0,0 +1,98 @@
+package com.android.volley.toolbox;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Limits the bitmap decodes running at the same time, to the amount of cores and to a memory budget for the
+ * decoded bitmaps. A decode that does not fit waits until enough running decodes finished, a single decode
+ * larger than the budget runs alone.
+ * Also has the executor that image requests are parsed on when they are a cache hit, so hits are decoded
+ * in parallel instead of on the single cache dispatcher thread.
+ */
+public class DecodePool {
+    /** Maximum amount of decodes at the same time. */
+    private static final int MAX_DECODES = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /** Maximum amount of memory the running decodes may use. */
+    private static final long MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 8;
+
+    private static final ExecutorService sExecutor = Executors.newFixedThreadPool(MAX_DECODES,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    });
+                    thread.setName("Volley decode");
+                    return thread;
+                }
+            });
+
+    private static final Object sLock = new Object();
+    // Guarded by sLock
+    private static int sRunning = 0;
+    private static long sMemoryUsed = 0;
+    private static int sDecodeCount = 0;
+    private static long sDecodeTime = 0;
+    private static long sMaxDecodeTime = 0;
+    private static int sMaxRunning = 0;
+
+    public static Executor getExecutor() {
+        return sExecutor;
+    }
+
+    /**
+     * Waits until a decode of this size may run.
+     * @param bytes estimated memory the decode needs
+     * @return the start time of the decode, to pass to {@link #release(long, long)}
+     */
+    public static long acquire(long bytes) throws InterruptedException {
+        synchronized (sLock) {
+            while (sRunning > 0 && (sRunning >= MAX_DECODES || sMemoryUsed + bytes > MEMORY_BUDGET)) {
+                sLock.wait();
+            }
+            sRunning++;
+            sMemoryUsed += bytes;
+            sMaxRunning = Math.max(sMaxRunning, sRunning);
+        }
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Ends a decode started with {@link #acquire(long)}.
+     * @return the time the decode took, in ms
+     */
+    public static long release(long bytes, long startTime) {
+        long time = SystemClock.elapsedRealtime() - startTime;
+        synchronized (sLock) {
+            sRunning--;
+            sMemoryUsed -= bytes;
+            sDecodeCount++;
+            sDecodeTime += time;
+            sMaxDecodeTime = Math.max(sMaxDecodeTime, time);
+            sLock.notifyAll();
+        }
+        return time;
+    }
+
+    /**
+     * Statistics of the decodes so far, for debugging.
+     */
+    public static String getSummary() {
+        synchronized (sLock) {
+            return "Decoded " + sDecodeCount + " images, average " +
+                    (sDecodeCount == 0 ? 0 : sDecodeTime / sDecodeCount) + "ms, longest " + sMaxDecodeTime +
+                    "ms, at most " + sMaxRunning + " of " + MAX_DECODES + " at the same time";
+        }
+    }
+}
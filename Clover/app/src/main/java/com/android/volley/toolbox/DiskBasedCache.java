@@ -23,6 +23,7 @@ import com.android.volley.VolleyLog;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -31,24 +32,41 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Cache implementation that caches files directly onto the hard disk in the specified
  * directory. The default disk usage size is 5MB, but is configurable.
+ * <p>
+ * The index is guarded by a short lock on {@link #mEntries}, the files by striped read write locks.
+ * Reads of different keys, and of the same key, run in parallel. Lock order is the file lock, then the index.
  */
 public class DiskBasedCache implements Cache {
 
-    /** Map of the Key, CacheHeader pairs */
+    /** Map of the Key, CacheHeader pairs, guarded by itself. */
     private final Map<String, CacheHeader> mEntries =
             new LinkedHashMap<String, CacheHeader>(16, .75f, true);
 
     /** Total amount of space currently used by the cache in bytes. */
-    private long mTotalSize = 0;
+    private final AtomicLong mTotalSize = new AtomicLong();
+
+    /** Amount of lock stripes for the files. */
+    private static final int LOCK_STRIPES = 32;
+
+    /** Locks of the files, a key uses the stripe of its hash. */
+    private final ReentrantReadWriteLock[] mFileLocks = new ReentrantReadWriteLock[LOCK_STRIPES];
 
     /** The root directory to use for the cache. */
     private final File mRootDirectory;
@@ -67,6 +85,24 @@ public class DiskBasedCache implements Cache {
 
     private static final int DEFAULT_DISK_FILES_MAX = 250;
 
+    /** Name of the journal of the index, in the root directory. */
+    private static final String JOURNAL_NAME = "journal";
+
+    /** Name of the journal while it is rewritten. */
+    private static final String JOURNAL_TEMP_NAME = "journal.tmp";
+
+    /** Journal record of an added entry, followed by the header, the data size and the data offset. */
+    private static final int JOURNAL_PUT = 1;
+
+    /** Journal record of a removed entry, followed by the key. */
+    private static final int JOURNAL_REMOVE = 2;
+
+    /** The open journal, appended to on every change of the index. Guarded by mEntries. */
+    private OutputStream mJournal;
+
+    /** Amount of records in the journal. */
+    private int mJournalRecords = 0;
+
     /**
      * Constructs an instance of the DiskBasedCache at the specified directory.
      * @param rootDirectory The root directory of the cache.
@@ -75,6 +111,9 @@ public class DiskBasedCache implements Cache {
     public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
         mRootDirectory = rootDirectory;
         mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mFileLocks[i] = new ReentrantReadWriteLock();
+        }
     }
 
     /**
@@ -90,74 +129,205 @@ public class DiskBasedCache implements Cache {
      * Clears the cache. Deletes all cached files from disk.
      */
     @Override
-    public synchronized void clear() {
-        File[] files = mRootDirectory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                file.delete();
+    public void clear() {
+        lockAllFiles();
+        try {
+            synchronized (mEntries) {
+                File[] files = mRootDirectory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                mEntries.clear();
+                mTotalSize.set(0);
+                rewriteJournal();
             }
+        } finally {
+            unlockAllFiles();
         }
-        mEntries.clear();
-        mTotalSize = 0;
         VolleyLog.d("Cache cleared.");
     }
 
     /**
-     * Returns the cache entry with the specified key if it exists, null otherwise.
+     * Closes the journal. The cache can not be used after this.
      */
-    @Override
-    public synchronized Entry get(String key) {
-        CacheHeader entry = mEntries.get(key);
-        // if the entry does not exist, return.
-        if (entry == null) {
-            return null;
+    public void close() {
+        synchronized (mEntries) {
+            closeJournal();
         }
+    }
 
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise.
+     */
+    @Override
+    public Entry get(String key) {
         File file = getFileForKey(key);
-        CountingInputStream cis = null;
+        Lock lock = getFileLock(key).readLock();
+        lock.lock();
+        RandomAccessFile raf = null;
         try {
-            cis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
-            CacheHeader.readHeader(cis); // eat header
-            byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
+            CacheHeader entry;
+            synchronized (mEntries) {
+                entry = mEntries.get(key);
+            }
+            // if the entry does not exist, return.
+            if (entry == null) {
+                return null;
+            }
+
+            // The header is in the index, only the data is read
+            raf = new RandomAccessFile(file, "r");
+            if (entry.dataOffset <= 0 || raf.length() != entry.dataOffset + entry.size) {
+                throw new IOException("Cache file does not match the index");
+            }
+            byte[] data = new byte[(int) entry.size];
+            raf.seek(entry.dataOffset);
+            raf.readFully(data);
             return entry.toCacheEntry(data);
         } catch (IOException e) {
             VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
-            return null;
         } finally {
-            if (cis != null) {
+            if (raf != null) {
                 try {
-                    cis.close();
-                } catch (IOException ioe) {
-                    return null;
-                }
+                    raf.close();
+                } catch (IOException ignored) { }
             }
+            lock.unlock();
         }
+
+        // Removed after releasing the read lock, remove takes the write lock
+        remove(key);
+        return null;
     }
 
     /**
-     * Initializes the DiskBasedCache by scanning for all files currently in the
-     * specified root directory. Creates the root directory if necessary.
+     * Initializes the DiskBasedCache from the journal of the index, or by scanning for all files
+     * currently in the specified root directory if there is no journal. Creates the root directory if necessary.
      */
     @Override
-    public synchronized void initialize() {
+    public void initialize() {
+        lockAllFiles();
+        try {
+            synchronized (mEntries) {
+                initializeLocked();
+            }
+        } finally {
+            unlockAllFiles();
+        }
+    }
+
+    private void initializeLocked() {
         if (!mRootDirectory.exists()) {
             if (!mRootDirectory.mkdirs()) {
                 VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
             }
+            rewriteJournal();
+            return;
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        boolean fromJournal = readJournal();
+        if (fromJournal) {
+            deleteUnindexedFiles();
+        } else {
+            scanFiles();
+        }
+        // Compacts the journal, or creates it after a scan
+        rewriteJournal();
+
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("initialized %d entries from the %s, %d bytes, %d ms", mEntries.size(),
+                    fromJournal ? "journal" : "files", mTotalSize.get(), SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /**
+     * Reads the index from the journal. A truncated last record, from being killed while writing it,
+     * is ignored.
+     * @return false if there is no journal or it could not be read
+     */
+    private boolean readJournal() {
+        File journalFile = new File(mRootDirectory, JOURNAL_NAME);
+        if (!journalFile.exists()) {
+            return false;
+        }
+
+        BufferedInputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(journalFile));
+            int type;
+            while ((type = is.read()) != -1) {
+                if (type == JOURNAL_PUT) {
+                    CacheHeader entry = CacheHeader.readHeader(is);
+                    entry.size = readLong(is);
+                    entry.dataOffset = readInt(is);
+                    putEntry(entry.key, entry);
+                } else if (type == JOURNAL_REMOVE) {
+                    removeEntry(readString(is));
+                } else {
+                    throw new IOException("Unknown journal record " + type);
+                }
+            }
+            return true;
+        } catch (EOFException e) {
+            VolleyLog.d("Ignoring the truncated end of the journal");
+            return true;
+        } catch (IOException e) {
+            VolleyLog.d("Could not read the journal: %s", e.toString());
+            mEntries.clear();
+            mTotalSize.set(0);
+            return false;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /**
+     * Deletes the files that are not in the index, written while the journal record was not.
+     * Listing the names is cheap compared to reading the header of every file.
+     */
+    private void deleteUnindexedFiles() {
+        String[] names = mRootDirectory.list();
+        if (names == null || names.length <= mEntries.size() + 1) {
             return;
         }
 
+        Set<String> indexed = new HashSet<String>(mEntries.size() * 2);
+        for (String key : mEntries.keySet()) {
+            indexed.add(getFilenameForKey(key));
+        }
+        for (String name : names) {
+            if (!indexed.contains(name) && !name.startsWith(JOURNAL_NAME)) {
+                new File(mRootDirectory, name).delete();
+            }
+        }
+    }
+
+    /**
+     * Builds the index by reading the header of every file, only done without a journal.
+     */
+    private void scanFiles() {
         File[] files = mRootDirectory.listFiles();
         if (files == null) {
             return;
         }
         for (File file : files) {
-            BufferedInputStream fis = null;
+            if (file.getName().startsWith(JOURNAL_NAME)) {
+                continue;
+            }
+
+            CountingInputStream cis = null;
             try {
-                fis = new BufferedInputStream(new FileInputStream(file));
-                CacheHeader entry = CacheHeader.readHeader(fis);
-                entry.size = file.length();
+                cis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+                CacheHeader entry = CacheHeader.readHeader(cis);
+                entry.dataOffset = cis.bytesRead;
+                entry.size = file.length() - cis.bytesRead;
                 putEntry(entry.key, entry);
             } catch (IOException e) {
                 if (file != null) {
@@ -165,21 +335,114 @@ public class DiskBasedCache implements Cache {
                 }
             } finally {
                 try {
-                    if (fis != null) {
-                        fis.close();
+                    if (cis != null) {
+                        cis.close();
                     }
                 } catch (IOException ignored) { }
             }
         }
     }
 
+    /**
+     * Writes the whole index as a new journal and opens it for appending.
+     */
+    private void rewriteJournal() {
+        closeJournal();
+
+        File temp = new File(mRootDirectory, JOURNAL_TEMP_NAME);
+        OutputStream os = null;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(temp));
+            // Iterating does not change the access order
+            for (CacheHeader entry : mEntries.values()) {
+                writePutRecord(os, entry);
+            }
+            os.close();
+            os = null;
+
+            File journalFile = new File(mRootDirectory, JOURNAL_NAME);
+            if (!temp.renameTo(journalFile)) {
+                throw new IOException("Could not rename the journal");
+            }
+            mJournal = new BufferedOutputStream(new FileOutputStream(journalFile, true));
+            mJournalRecords = mEntries.size();
+        } catch (IOException e) {
+            VolleyLog.e("Could not write the journal: %s", e.toString());
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException ignored) { }
+            mJournal = null;
+        }
+    }
+
+    private static void writePutRecord(OutputStream os, CacheHeader entry) throws IOException {
+        os.write(JOURNAL_PUT);
+        if (!entry.writeHeader(os)) {
+            throw new IOException("Could not write the header");
+        }
+        writeLong(os, entry.size);
+        writeInt(os, entry.dataOffset);
+    }
+
+    private void journalPut(CacheHeader entry) {
+        if (mJournal == null) {
+            return;
+        }
+        try {
+            writePutRecord(mJournal, entry);
+            mJournal.flush();
+        } catch (IOException e) {
+            VolleyLog.e("Could not write to the journal: %s", e.toString());
+            closeJournal();
+            return;
+        }
+        journalRecordAdded();
+    }
+
+    private void journalRemove(String key) {
+        if (mJournal == null) {
+            return;
+        }
+        try {
+            mJournal.write(JOURNAL_REMOVE);
+            writeString(mJournal, key);
+            mJournal.flush();
+        } catch (IOException e) {
+            VolleyLog.e("Could not write to the journal: %s", e.toString());
+            closeJournal();
+            return;
+        }
+        journalRecordAdded();
+    }
+
+    /**
+     * Compacts the journal when it is mostly records of replaced and removed entries.
+     */
+    private void journalRecordAdded() {
+        mJournalRecords++;
+        if (mJournalRecords > 1000 && mJournalRecords > mEntries.size() * 2) {
+            rewriteJournal();
+        }
+    }
+
     /**
      * Invalidates an entry in the cache.
      * @param key Cache key
      * @param fullExpire True to fully expire the entry, false to soft expire
      */
     @Override
-    public synchronized void invalidate(String key, boolean fullExpire) {
+    public void invalidate(String key, boolean fullExpire) {
         Entry entry = get(key);
         if (entry != null) {
             entry.softTtl = 0;
@@ -195,27 +458,49 @@ public class DiskBasedCache implements Cache {
      * Puts the entry with the specified key into the cache.
      */
     @Override
-    public synchronized void put(String key, Entry entry) {
+    public void put(String key, Entry entry) {
         pruneIfNeeded(entry.data.length);
         File file = getFileForKey(key);
+        Lock lock = getFileLock(key).writeLock();
+        lock.lock();
         try {
-            BufferedOutputStream fos = new BufferedOutputStream(new FileOutputStream(file));
-            CacheHeader e = new CacheHeader(key, entry);
-            boolean success = e.writeHeader(fos);
-            if (!success) {
-                fos.close();
-                VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
-                throw new IOException();
+            try {
+                // The header is written first to know where the data starts
+                ByteArrayOutputStream header = new ByteArrayOutputStream(256);
+                CacheHeader e = new CacheHeader(key, entry);
+                boolean success = e.writeHeader(header);
+                if (!success) {
+                    VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
+                    throw new IOException();
+                }
+                e.dataOffset = header.size();
+                FileOutputStream fos = new FileOutputStream(file);
+                try {
+                    header.writeTo(fos);
+                    fos.write(entry.data);
+                } finally {
+                    fos.close();
+                }
+                synchronized (mEntries) {
+                    putEntry(key, e);
+                    journalPut(e);
+                }
+                return;
+            } catch (IOException e) {
             }
-            fos.write(entry.data);
-            fos.close();
-            putEntry(key, e);
-            return;
-        } catch (IOException e) {
-        }
-        boolean deleted = file.delete();
-        if (!deleted) {
-            VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
+            boolean deleted = file.delete();
+            if (!deleted) {
+                VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
+            }
+            // The file of a previous entry was overwritten
+            synchronized (mEntries) {
+                if (mEntries.containsKey(key)) {
+                    removeEntry(key);
+                    journalRemove(key);
+                }
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -223,12 +508,44 @@ public class DiskBasedCache implements Cache {
      * Removes the specified key from the cache if it exists.
      */
     @Override
-    public synchronized void remove(String key) {
-        boolean deleted = getFileForKey(key).delete();
-        removeEntry(key);
-        if (!deleted) {
-            VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                    key, getFilenameForKey(key));
+    public void remove(String key) {
+        Lock lock = getFileLock(key).writeLock();
+        lock.lock();
+        try {
+            boolean deleted = getFileForKey(key).delete();
+            synchronized (mEntries) {
+                if (mEntries.containsKey(key)) {
+                    removeEntry(key);
+                    journalRemove(key);
+                }
+            }
+            if (!deleted) {
+                VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
+                        key, getFilenameForKey(key));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ReentrantReadWriteLock getFileLock(String key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return mFileLocks[(hash & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    /**
+     * Takes the write lock of every file, in stripe order.
+     */
+    private void lockAllFiles() {
+        for (ReentrantReadWriteLock lock : mFileLocks) {
+            lock.writeLock().lock();
+        }
+    }
+
+    private void unlockAllFiles() {
+        for (int i = LOCK_STRIPES - 1; i >= 0; i--) {
+            mFileLocks[i].writeLock().unlock();
         }
     }
 
@@ -252,43 +569,61 @@ public class DiskBasedCache implements Cache {
     }
 
     /**
-     * Prunes the cache to fit the amount of bytes specified.
+     * Prunes the cache to fit the amount of bytes specified. The entries are removed from the index first,
+     * their files are deleted after, without holding the index lock.
      * @param neededSpace The amount of bytes we are trying to fit into the cache.
      */
     private void pruneIfNeeded(int neededSpace) {
-        if (mEntries.size() <= DEFAULT_DISK_FILES_MAX && (mTotalSize + neededSpace) < mMaxCacheSizeInBytes) {
-            return;
-        }
-        if (VolleyLog.DEBUG) {
-            VolleyLog.v("Pruning old cache entries.");
-        }
+        List<CacheHeader> pruned = new ArrayList<CacheHeader>();
+        long before;
+        long startTime;
+        synchronized (mEntries) {
+            if (mEntries.size() <= DEFAULT_DISK_FILES_MAX && (mTotalSize.get() + neededSpace) < mMaxCacheSizeInBytes) {
+                return;
+            }
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("Pruning old cache entries.");
+            }
 
-        long before = mTotalSize;
-        int prunedFiles = 0;
-        long startTime = SystemClock.elapsedRealtime();
+            before = mTotalSize.get();
+            startTime = SystemClock.elapsedRealtime();
 
-        Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, CacheHeader> entry = iterator.next();
-            CacheHeader e = entry.getValue();
-            boolean deleted = getFileForKey(e.key).delete();
-            if (deleted) {
-                mTotalSize -= e.size;
-            } else {
-               VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                       e.key, getFilenameForKey(e.key));
+            Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, CacheHeader> entry = iterator.next();
+                CacheHeader e = entry.getValue();
+                iterator.remove();
+                mTotalSize.addAndGet(-e.size);
+                journalRemove(e.key);
+                pruned.add(e);
+
+                if (mEntries.size() < DEFAULT_DISK_FILES_MAX * HYSTERESIS_FACTOR && (mTotalSize.get() + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+                    break;
+                }
             }
-            iterator.remove();
-            prunedFiles++;
+        }
 
-            if (mEntries.size() < DEFAULT_DISK_FILES_MAX * HYSTERESIS_FACTOR && (mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
-                break;
+        for (CacheHeader e : pruned) {
+            Lock lock = getFileLock(e.key).writeLock();
+            lock.lock();
+            try {
+                boolean putAgain;
+                synchronized (mEntries) {
+                    putAgain = mEntries.containsKey(e.key);
+                }
+                // Keep the file if the key was put again while waiting for the lock
+                if (!putAgain && !getFileForKey(e.key).delete()) {
+                    VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
+                            e.key, getFilenameForKey(e.key));
+                }
+            } finally {
+                lock.unlock();
             }
         }
 
         if (VolleyLog.DEBUG) {
             VolleyLog.v("pruned %d files, %d bytes, %d ms",
-                    prunedFiles, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
+                    pruned.size(), (mTotalSize.get() - before), SystemClock.elapsedRealtime() - startTime);
         }
     }
 
@@ -298,23 +633,17 @@ public class DiskBasedCache implements Cache {
      * @param entry The entry to cache.
      */
     private void putEntry(String key, CacheHeader entry) {
-        if (!mEntries.containsKey(key)) {
-            mTotalSize += entry.size;
-        } else {
-            CacheHeader oldEntry = mEntries.get(key);
-            mTotalSize += (entry.size - oldEntry.size);
-        }
-        mEntries.put(key, entry);
+        CacheHeader oldEntry = mEntries.put(key, entry);
+        mTotalSize.addAndGet(entry.size - (oldEntry == null ? 0 : oldEntry.size));
     }
 
     /**
      * Removes the entry identified by 'key' from the cache.
      */
     private void removeEntry(String key) {
-        CacheHeader entry = mEntries.get(key);
+        CacheHeader entry = mEntries.remove(key);
         if (entry != null) {
-            mTotalSize -= entry.size;
-            mEntries.remove(key);
+            mTotalSize.addAndGet(-entry.size);
         }
     }
 
@@ -343,6 +672,10 @@ public class DiskBasedCache implements Cache {
          * serialized to disk. */
         public long size;
 
+        /** Offset of the data in the file, after the header. (Only serialized
+         * to the journal.) */
+        public int dataOffset;
+
         /** The key that identifies the cache entry. */
         public String key;
 
@@ -27,6 +27,8 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 
+import java.util.concurrent.Executor;
+
 /**
  * A canned request for getting an image at a given URL and calling
  * back with a decoded Bitmap.
@@ -46,9 +48,6 @@ public class ImageRequest extends Request<Bitmap> {
     private final int mMaxWidth;
     private final int mMaxHeight;
 
-    /** Decoding lock so that we don't decode more than one image at a time (to avoid OOM's) */
-    private static final Object sDecodeLock = new Object();
-
     /**
      * Creates a new image request, decoding to a maximum specified width and
      * height. If both width and height are zero, the image will be decoded to
@@ -77,9 +76,20 @@ public class ImageRequest extends Request<Bitmap> {
         mMaxHeight = maxHeight;
     }
 
+    /**
+     * Above background loads, images are requested for views that are on the screen.
+     */
     @Override
     public Priority getPriority() {
-        return Priority.LOW;
+        return Priority.NORMAL;
+    }
+
+    /**
+     * The most recently requested image is the one the user scrolled to.
+     */
+    @Override
+    public boolean isLifo() {
+        return true;
     }
 
     /**
@@ -118,33 +128,85 @@ public class ImageRequest extends Request<Bitmap> {
         return resized;
     }
 
+    /**
+     * The cache is read and hits are decoded on the {@link DecodePool}, in parallel.
+     */
+    @Override
+    public Executor getParseExecutor() {
+        return DecodePool.getExecutor();
+    }
+
     @Override
     protected Response<Bitmap> parseNetworkResponse(NetworkResponse response) {
-        // Serialize all decode on a global lock to reduce concurrent heap usage.
-        synchronized (sDecodeLock) {
-            try {
-                return doParse(response);
-            } catch (OutOfMemoryError e) {
-                VolleyLog.e("Caught OOM for %d byte image, url=%s", response.data.length, getUrl());
-                return Response.error(new ParseError(e));
+        byte[] data = response.data;
+
+        // Get the natural bounds first, to know the memory the decode needs.
+        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+        decodeOptions.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
+        if (decodeOptions.outWidth <= 0 || decodeOptions.outHeight <= 0) {
+            return Response.error(new ParseError(response));
+        }
+
+        // Limit the decodes running at the same time to avoid OOM's.
+        long memory = estimateMemory(decodeOptions.outWidth, decodeOptions.outHeight);
+        long startTime;
+        try {
+            startTime = DecodePool.acquire(memory);
+        } catch (InterruptedException e) {
+            return Response.error(new ParseError(e));
+        }
+
+        try {
+            return doParse(response, decodeOptions);
+        } catch (OutOfMemoryError e) {
+            VolleyLog.e("Caught OOM for %d byte image, url=%s", response.data.length, getUrl());
+            return Response.error(new ParseError(e));
+        } finally {
+            long time = DecodePool.release(memory, startTime);
+            addMarker("decode-" + time + "ms");
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("Decoded %s in %d ms", getUrl(), time);
+            }
+        }
+    }
+
+    /**
+     * Estimates the memory a decode needs for the bitmap, and its scaled copy when one is made.
+     */
+    private long estimateMemory(int actualWidth, int actualHeight) {
+        if (mMaxWidth == 0 && mMaxHeight == 0) {
+            int bytesPerPixel;
+            if (mDecodeConfig == Config.ALPHA_8) {
+                bytesPerPixel = 1;
+            } else if (mDecodeConfig == Config.RGB_565 || mDecodeConfig == Config.ARGB_4444) {
+                bytesPerPixel = 2;
+            } else {
+                bytesPerPixel = 4;
             }
+            return (long) actualWidth * actualHeight * bytesPerPixel;
+        } else {
+            // Resized images are decoded with the default config, 4 bytes per pixel
+            int desiredWidth = getResizedDimension(mMaxWidth, mMaxHeight, actualWidth, actualHeight);
+            int desiredHeight = getResizedDimension(mMaxHeight, mMaxWidth, actualHeight, actualWidth);
+            int sampleSize = findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
+            long sampled = (long) (actualWidth / sampleSize) * (actualHeight / sampleSize);
+            return (sampled + (long) desiredWidth * desiredHeight) * 4;
         }
     }
 
     /**
      * The real guts of parseNetworkResponse. Broken out for readability.
+     * @param decodeOptions options with the natural bounds decoded
      */
-    private Response<Bitmap> doParse(NetworkResponse response) {
+    private Response<Bitmap> doParse(NetworkResponse response, BitmapFactory.Options decodeOptions) {
         byte[] data = response.data;
-        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
         Bitmap bitmap = null;
         if (mMaxWidth == 0 && mMaxHeight == 0) {
+            decodeOptions.inJustDecodeBounds = false;
             decodeOptions.inPreferredConfig = mDecodeConfig;
             bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
         } else {
-            // If we have to resize this image, first get the natural bounds.
-            decodeOptions.inJustDecodeBounds = true;
-            BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
             int actualWidth = decodeOptions.outWidth;
             int actualHeight = decodeOptions.outHeight;
 
@@ -0,0 +1,149 @@
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+import com.android.volley.Request.Method;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link HttpStack} based on an {@link OkHttpClient}. Requests share the connection pool of the client, so
+ * connections are kept alive and reused, and multiplexed over HTTP/2 or SPDY when the server supports it.
+ */
+public class OkHttpStack implements HttpStack {
+    private final OkHttpClient mClient;
+    private final String mUserAgent;
+
+    public OkHttpStack(OkHttpClient client, String userAgent) {
+        mClient = client;
+        mUserAgent = userAgent;
+    }
+
+    @Override
+    public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError {
+        // A clone shares the connection pool, the timeouts are per request
+        OkHttpClient client = mClient.clone();
+        int timeoutMs = request.getTimeoutMs();
+        client.setConnectTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+        client.setReadTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+        client.setWriteTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+
+        com.squareup.okhttp.Request.Builder builder = new com.squareup.okhttp.Request.Builder();
+        builder.url(request.getUrl());
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        for (Map.Entry<String, String> header : additionalHeaders.entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        builder.header("User-Agent", mUserAgent);
+        setConnectionParametersForRequest(builder, request);
+
+        Response okResponse = client.newCall(builder.build()).execute();
+
+        StatusLine responseStatus = new BasicStatusLine(parseProtocol(okResponse.protocol()),
+                okResponse.code(), okResponse.message());
+        BasicHttpResponse response = new BasicHttpResponse(responseStatus);
+        response.setEntity(entityFromResponse(okResponse));
+
+        Headers headers = okResponse.headers();
+        for (int i = 0; i < headers.size(); i++) {
+            response.addHeader(new BasicHeader(headers.name(i), headers.value(i)));
+        }
+
+        return response;
+    }
+
+    private static HttpEntity entityFromResponse(Response response) throws IOException {
+        BasicHttpEntity entity = new BasicHttpEntity();
+        ResponseBody body = response.body();
+        entity.setContent(body.byteStream());
+        entity.setContentLength(body.contentLength());
+        entity.setContentEncoding(response.header("Content-Encoding"));
+        entity.setContentType(response.header("Content-Type"));
+        return entity;
+    }
+
+    private static ProtocolVersion parseProtocol(Protocol protocol) {
+        switch (protocol) {
+            case HTTP_1_0:
+                return new ProtocolVersion("HTTP", 1, 0);
+            case HTTP_1_1:
+                return new ProtocolVersion("HTTP", 1, 1);
+            case SPDY_3:
+                return new ProtocolVersion("SPDY", 3, 1);
+            case HTTP_2:
+                return new ProtocolVersion("HTTP", 2, 0);
+            default:
+                throw new IllegalStateException("Unknown protocol " + protocol);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void setConnectionParametersForRequest(com.squareup.okhttp.Request.Builder builder,
+                                                          Request<?> request) throws AuthFailureError {
+        switch (request.getMethod()) {
+            case Method.DEPRECATED_GET_OR_POST:
+                // Same as HurlStack, a POST if there is a post body, otherwise a GET
+                byte[] postBody = request.getPostBody();
+                if (postBody != null) {
+                    builder.post(RequestBody.create(MediaType.parse(request.getPostBodyContentType()), postBody));
+                }
+                break;
+            case Method.GET:
+                builder.get();
+                break;
+            case Method.DELETE:
+                builder.delete();
+                break;
+            case Method.POST:
+                builder.post(createRequestBody(request));
+                break;
+            case Method.PUT:
+                builder.put(createRequestBody(request));
+                break;
+            case Method.HEAD:
+                builder.head();
+                break;
+            case Method.OPTIONS:
+                builder.method("OPTIONS", null);
+                break;
+            case Method.TRACE:
+                builder.method("TRACE", null);
+                break;
+            case Method.PATCH:
+                builder.method("PATCH", createRequestBody(request));
+                break;
+            default:
+                throw new IllegalStateException("Unknown method type.");
+        }
+    }
+
+    private static RequestBody createRequestBody(Request<?> request) throws AuthFailureError {
+        // OkHttp needs a body for the methods that have one, even if it is empty
+        byte[] body = request.getBody();
+        if (body == null) {
+            body = new byte[0];
+        }
+        return RequestBody.create(MediaType.parse(request.getBodyContentType()), body);
+    }
+}
@@ -24,9 +24,13 @@ import android.view.ViewConfiguration;
 
 import com.android.volley.RequestQueue;
 import com.android.volley.toolbox.ImageLoader;
+import com.android.volley.toolbox.OkHttpStack;
 import com.android.volley.toolbox.Volley;
+import com.squareup.okhttp.OkHttpClient;
 
 import org.floens.chan.chan.ChanUrls;
+import org.floens.chan.core.loader.ThreadSnapshotStore;
+import org.floens.chan.core.manager.ArchiveManager;
 import org.floens.chan.core.manager.BoardManager;
 import org.floens.chan.core.manager.ReplyManager;
 import org.floens.chan.core.manager.WatchManager;
@@ -37,6 +41,7 @@ import org.floens.chan.utils.AndroidUtils;
 import org.floens.chan.utils.FileCache;
 import org.floens.chan.utils.IconCache;
 import org.floens.chan.utils.Logger;
+import org.floens.chan.utils.Time;
 
 import java.io.File;
 import java.lang.reflect.Field;
@@ -50,10 +55,14 @@ public class ChanApplication extends Application {
     private static final String FILE_CACHE_NAME = "filecache";
     private static final int VOLLEY_LRU_CACHE_SIZE = 8 * 1024 * 1024;
     private static final int VOLLEY_CACHE_SIZE = 10 * 1024 * 1024;
+    private static final String THREAD_SNAPSHOT_NAME = "threads";
+    private static final int THREAD_SNAPSHOT_COUNT = 100;
+    private static final String ARCHIVE_DIR_NAME = "archives";
 
     public static Context con;
 
     private static ChanApplication instance;
+    private static OkHttpClient httpClient;
     private static RequestQueue volleyRequestQueue;
     private static com.android.volley.toolbox.ImageLoader imageLoader;
     private static BoardManager boardManager;
@@ -61,8 +70,11 @@ public class ChanApplication extends Application {
     private static ReplyManager replyManager;
     private static DatabaseManager databaseManager;
     private static FileCache fileCache;
+    private static ThreadSnapshotStore threadSnapshotStore;
+    private static ArchiveManager archiveManager;
 
     private int activityForegroundCounter = 0;
+    private long startupTime;
 
     public ChanApplication() {
         instance = this;
@@ -73,6 +85,14 @@ public class ChanApplication extends Application {
         return instance;
     }
 
+    /**
+     * The http client shared by Volley, the FileCache and the ReplyManager, so they use the same connections.
+     * Use {@link OkHttpClient#clone()} for different settings, clones share the connection pool.
+     */
+    public static OkHttpClient getHttpClient() {
+        return httpClient;
+    }
+
     public static RequestQueue getVolleyRequestQueue() {
         return volleyRequestQueue;
     }
@@ -101,9 +121,18 @@ public class ChanApplication extends Application {
         return fileCache;
     }
 
+    public static ThreadSnapshotStore getThreadSnapshotStore() {
+        return threadSnapshotStore;
+    }
+
+    public static ArchiveManager getArchiveManager() {
+        return archiveManager;
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
+        long start = Time.get();
 
         // Force the overflow button to show, even on devices that have a
         // physical button.
@@ -132,17 +161,31 @@ public class ChanApplication extends Application {
 
         File cacheDir = getExternalCacheDir() != null ? getExternalCacheDir() : getCacheDir();
 
+        httpClient = new OkHttpClient();
         replyManager = new ReplyManager(this);
 
-        volleyRequestQueue = Volley.newRequestQueue(this, replyManager.getUserAgent(), null, new File(cacheDir, Volley.DEFAULT_CACHE_DIR), VOLLEY_CACHE_SIZE);
+        String userAgent = replyManager.getUserAgent();
+        volleyRequestQueue = Volley.newRequestQueue(this, userAgent, new OkHttpStack(httpClient, userAgent), new File(cacheDir, Volley.DEFAULT_CACHE_DIR), VOLLEY_CACHE_SIZE);
         imageLoader = new ImageLoader(volleyRequestQueue, new BitmapLruImageCache(VOLLEY_LRU_CACHE_SIZE));
 
         fileCache = new FileCache(new File(cacheDir, FILE_CACHE_NAME), FILE_CACHE_DISK_SIZE);
+        threadSnapshotStore = new ThreadSnapshotStore(new File(cacheDir, THREAD_SNAPSHOT_NAME), THREAD_SNAPSHOT_COUNT);
+        // Not in the cache dir, archived threads should not be removed by the system
+        archiveManager = new ArchiveManager(new File(getFilesDir(), ARCHIVE_DIR_NAME));
 
         databaseManager = new DatabaseManager(this);
         boardManager = new BoardManager();
         watchManager = new WatchManager(this);
 
+        startupTime = Time.get(start);
+        Logger.d(TAG, "Startup took " + startupTime + "ms");
+    }
+
+    /**
+     * @return the time onCreate took, in ms
+     */
+    public long getStartupTime() {
+        return startupTime;
     }
 
     public void activityEnteredForeground() {
@@ -166,6 +209,11 @@ public class ChanApplication extends Application {
         if (getApplicationInForeground() != lastForeground) {
             EventBus.getDefault().post(new ForegroundChangedMessage(getApplicationInForeground()));
         }
+
+        if (!getApplicationInForeground()) {
+            // The process may be killed while in the background, write the queued database changes now
+            databaseManager.flush();
+        }
     }
 
     public boolean getApplicationInForeground() {
@@ -19,7 +19,10 @@ package org.floens.chan.core.loader;
 
 import android.text.TextUtils;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 
+import com.android.volley.Request;
 import com.android.volley.Response;
 import com.android.volley.ServerError;
 import com.android.volley.VolleyError;
@@ -28,6 +31,7 @@ import org.floens.chan.ChanApplication;
 import org.floens.chan.core.model.ChanThread;
 import org.floens.chan.core.model.Loadable;
 import org.floens.chan.core.model.Post;
+import org.floens.chan.core.model.ThreadDiff;
 import org.floens.chan.core.net.ChanReaderRequest;
 import org.floens.chan.utils.AndroidUtils;
 import org.floens.chan.utils.Logger;
@@ -44,19 +48,39 @@ public class ChanLoader {
     private static final String TAG = "Loader";
     private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
 
-    private static final int[] watchTimeouts = {10, 15, 20, 30, 60, 90, 120, 180, 240, 300, 600, 1800, 3600};
+    private static final int REPLY_COUNT_UNKNOWN = -2;
+    private static final int REPLY_COUNT_DELETED = -1;
+
+    // Bounds of the time between two loads of a thread, in ms
+    private static final long MIN_LOAD_DELAY = 10 * 1000L;
+    private static final long MAX_LOAD_DELAY = 10 * 60 * 1000L;
+    // At least this time between loads when not visible
+    private static final long MIN_BACKGROUND_LOAD_DELAY = 60 * 1000L;
+    // Closed and archived threads hardly change anymore
+    private static final long CLOSED_LOAD_DELAY = 60 * 60 * 1000L;
+    // First delay after a failed load, doubled for every next failure
+    private static final long ERROR_LOAD_DELAY = 30 * 1000L;
+    // Amount of the last posts used to estimate the post rate of a thread
+    private static final int POST_RATE_SAMPLES = 10;
 
     private final List<ChanLoaderCallback> listeners = new ArrayList<>();
     private final Loadable loadable;
     private final SparseArray<Post> postsById = new SparseArray<>();
+    // The repliesFrom size of every post at the last load, used to calculate the ThreadDiff
+    private final SparseIntArray replyCounts = new SparseIntArray();
     private ChanThread thread;
 
     private boolean destroyed = false;
     private boolean autoReload = false;
     private ChanReaderRequest request;
+    // The snapshot read by requestData, stale when requestData is called again before it is read
+    private ThreadSnapshotStore.SnapshotCallback pendingSnapshot;
 
-    private int currentTimeout;
-    private int lastPostCount;
+    // Last-Modified of the last thread response, sent back as If-Modified-Since when reloading
+    private String lastModified;
+
+    private long loadDelay = MIN_LOAD_DELAY;
+    private int errorCount;
     private long lastLoadTime;
     private ScheduledFuture<?> pendingFuture;
 
@@ -71,6 +95,8 @@ public class ChanLoader {
      */
     public void addListener(ChanLoaderCallback l) {
         listeners.add(l);
+        // Revived from the warm loaders of the LoaderPool
+        destroyed = false;
     }
 
     /**
@@ -84,8 +110,11 @@ public class ChanLoader {
         if (listeners.size() == 0) {
             clearTimer();
             destroyed = true;
+            autoReload = false;
+            pendingSnapshot = null;
             if (request != null) {
                 request.cancel();
+                request = null;
             }
             return true;
         } else {
@@ -112,21 +141,39 @@ public class ChanLoader {
      * Request more data if the time left is below 0 If auto load more is
      * disabled, this needs to be called manually. Otherwise this is called
      * automatically when the timer hits 0.
+     * The request has a low priority, so loads the user is waiting on go first. When this loader is visible with auto
+     * load more enabled it keeps the normal priority.
      */
     public void loadMoreIfTime() {
         if (getTimeUntilLoadMore() < 0L) {
-            requestMoreData();
+            requestMoreData(!autoReload);
         }
     }
 
     /**
      * Request data for the first time.
+     * A thread that is already loaded, because it is watched or was recently open, is delivered immediately and
+     * then only loads the changes.
      */
     public void requestData() {
         clearTimer();
 
         if (request != null) {
             request.cancel();
+            request = null;
+        }
+        pendingSnapshot = null;
+
+        if (loadable.isThreadMode() && thread != null && thread.posts.size() > 0) {
+            ThreadDiff diff = new ThreadDiff(true);
+            for (ChanLoaderCallback l : listeners) {
+                l.onChanLoaderData(thread, diff);
+            }
+
+            loadDelay = MIN_LOAD_DELAY;
+            errorCount = 0;
+            request = getData(false);
+            return;
         }
 
         if (loadable.isBoardMode() || loadable.isCatalogMode()) {
@@ -135,16 +182,41 @@ public class ChanLoader {
             loadable.listViewTop = 0;
         }
 
-        currentTimeout = 0;
+        loadDelay = MIN_LOAD_DELAY;
+        errorCount = 0;
         thread = null;
+        lastModified = null;
+
+        request = getData(false);
 
-        request = getData();
+        if (loadable.isThreadMode()) {
+            // Show the archived thread or the snapshot of the last load while the network load runs, if it is read
+            // before that load finished
+            pendingSnapshot = new ThreadSnapshotStore.SnapshotCallback() {
+                @Override
+                public void onSnapshot(List<Post> posts) {
+                    if (pendingSnapshot != this || destroyed) {
+                        return;
+                    }
+                    pendingSnapshot = null;
+
+                    if (thread == null && posts != null && posts.size() > 0 && posts.get(0).no == loadable.no) {
+                        onData(posts, null, false);
+                    }
+                }
+            };
+            ChanApplication.getArchiveManager().readPosts(loadable, pendingSnapshot);
+        }
     }
 
     /**
      * Request more data
      */
     public void requestMoreData() {
+        requestMoreData(false);
+    }
+
+    private void requestMoreData(boolean background) {
         clearTimer();
 
         if (loadable.isBoardMode()) {
@@ -155,13 +227,13 @@ public class ChanLoader {
 
             loadable.no++;
 
-            request = getData();
+            request = getData(background);
         } else if (loadable.isThreadMode()) {
             if (request != null) {
                 return;
             }
 
-            request = getData();
+            request = getData(background);
         }
     }
 
@@ -169,7 +241,7 @@ public class ChanLoader {
      * Request more data and reset the watch timer.
      */
     public void requestMoreDataAndResetTimer() {
-        currentTimeout = 0;
+        loadDelay = MIN_LOAD_DELAY;
         requestMoreData();
     }
 
@@ -194,11 +266,10 @@ public class ChanLoader {
      * @return
      */
     public long getTimeUntilLoadMore() {
-        if (request != null) {
+        if (isLoading()) {
             return 0L;
         } else {
-            long waitTime = watchTimeouts[currentTimeout] * 1000L;
-            return lastLoadTime + waitTime - Time.get();
+            return lastLoadTime + loadDelay - Time.get();
         }
     }
 
@@ -206,23 +277,13 @@ public class ChanLoader {
         return thread;
     }
 
-    private void setTimer(int postCount) {
+    private void setTimer(long delay) {
         clearTimer();
 
-        if (postCount > lastPostCount) {
-            currentTimeout = 0;
-        } else {
-            currentTimeout++;
-            if (currentTimeout >= watchTimeouts.length) {
-                currentTimeout = watchTimeouts.length - 1;
-            }
-        }
-
-        if (!autoReload && currentTimeout < 4) {
-            currentTimeout = 4; // At least 60 seconds in the background
+        if (!autoReload) {
+            delay = Math.max(MIN_BACKGROUND_LOAD_DELAY, delay);
         }
-
-        lastPostCount = postCount;
+        loadDelay = delay;
 
         if (autoReload) {
             Runnable pendingRunnable = new Runnable() {
@@ -239,11 +300,36 @@ public class ChanLoader {
                 }
             };
 
-            Logger.d(TAG, "Scheduled reload in " + watchTimeouts[currentTimeout] * 1000L);
-            pendingFuture = executor.schedule(pendingRunnable, watchTimeouts[currentTimeout], TimeUnit.SECONDS);
+            Logger.d(TAG, "Scheduled reload in " + loadDelay);
+            pendingFuture = executor.schedule(pendingRunnable, loadDelay, TimeUnit.MILLISECONDS);
         }
     }
 
+    /**
+     * Estimate the time until the next load from the post rate of the thread. The average time between the last posts
+     * is the expected time until the next post, or the time since the last post when the thread has been quiet for
+     * longer than that. The thread is loaded about twice in that time.
+     */
+    private long calculateLoadDelay() {
+        if (thread.closed || thread.archived) {
+            return CLOSED_LOAD_DELAY;
+        }
+
+        List<Post> posts = thread.posts;
+        int size = posts.size();
+        if (size == 0) {
+            return MIN_LOAD_DELAY;
+        }
+
+        long newest = posts.get(size - 1).time;
+        int samples = Math.min(POST_RATE_SAMPLES, size - 1);
+        long interval = samples > 0 ? (newest - posts.get(size - 1 - samples).time) / samples : 0L;
+        long sinceNewest = Time.get() / 1000L - newest;
+
+        long expected = Math.max(interval, sinceNewest) * 1000L;
+        return Math.max(MIN_LOAD_DELAY, Math.min(MAX_LOAD_DELAY, expected / 2L));
+    }
+
     private void clearTimer() {
         if (pendingFuture != null) {
             Logger.d(TAG, "Removed pending runnable");
@@ -252,16 +338,30 @@ public class ChanLoader {
         }
     }
 
-    private ChanReaderRequest getData() {
+    private ChanReaderRequest getData(boolean background) {
         Logger.i(TAG, "Requested " + loadable.board + ", " + loadable.no);
 
         List<Post> cached = thread == null ? new ArrayList<Post>() : thread.posts;
-        ChanReaderRequest request = ChanReaderRequest.newInstance(loadable, cached,
+        String ifModifiedSince = loadable.isThreadMode() ? lastModified : null;
+        // The response can only be applied as a diff to the posts the request had, not to a snapshot shown meanwhile
+        final boolean diffable = cached.size() > 0;
+        ChanReaderRequest request = ChanReaderRequest.newInstance(loadable, cached, ifModifiedSince,
                 new Response.Listener<List<Post>>() {
                     @Override
                     public void onResponse(List<Post> list) {
+                        List<Post> refinished = null;
+                        byte[] snapshot = null;
+                        if (ChanLoader.this.request != null) {
+                            lastModified = ChanLoader.this.request.getLastModified();
+                            refinished = ChanLoader.this.request.getPostsReplyingToDeleted();
+                            snapshot = ChanLoader.this.request.getSnapshot();
+                        }
                         ChanLoader.this.request = null;
-                        onData(list);
+                        ThreadDiff diff = onData(list, refinished, diffable);
+
+                        if (diff != null && diff.hasChanges() && snapshot != null) {
+                            ChanApplication.getThreadSnapshotStore().write(loadable, snapshot, list.size());
+                        }
                     }
                 }, new Response.ErrorListener() {
                     @Override
@@ -272,41 +372,66 @@ public class ChanLoader {
                 }
         );
 
+        if (background) {
+            request.setPriority(Request.Priority.LOW);
+        }
+
         ChanApplication.getVolleyRequestQueue().add(request);
 
         return request;
     }
 
-    private void onData(List<Post> result) {
+    /**
+     * @param refinished posts that were finished again by the request, or null
+     * @param diffable   false if the result is not based on the current posts, it replaces them then
+     */
+    private ThreadDiff onData(List<Post> result, List<Post> refinished, boolean diffable) {
         if (destroyed)
-            return;
+            return null;
+
+        ThreadDiff diff;
+        if (diffable && loadable.isThreadMode() && thread != null && thread.posts.size() > 0 && result.size() > 0) {
+            diff = calculateDiff(result, refinished);
+        } else {
+            diff = new ThreadDiff(true);
+        }
 
         if (thread == null) {
             thread = new ChanThread(new ArrayList<Post>());
         }
 
-        if (loadable.isThreadMode() || loadable.isCatalogMode()) {
+        if (!diff.full) {
+            // The result is the previous list with the OP replaced and the new posts appended
+            Post op = result.get(0);
+            thread.posts.set(0, op);
+            postsById.put(op.no, op);
+            op.title = loadable.title;
+
+            for (Post post : diff.added) {
+                thread.posts.add(post);
+                postsById.put(post.no, post);
+                post.title = loadable.title;
+            }
+
+            updateReplyCounts(diff.added);
+            updateReplyCounts(diff.deleted);
+            updateReplyCounts(diff.updated);
+        } else if (loadable.isThreadMode() || loadable.isCatalogMode()) {
             thread.posts.clear();
             thread.posts.addAll(result);
             postsById.clear();
             for (Post post : result) {
                 postsById.append(post.no, post);
             }
+
+            replyCounts.clear();
+            updateReplyCounts(result);
         } else if (loadable.isBoardMode()) {
             // Only add new posts
-            boolean flag;
             for (Post post : result) {
-                flag = true;
-                for (Post cached : thread.posts) {
-                    if (post.no == cached.no) {
-                        flag = false;
-                        break;
-                    }
-                }
-
-                if (flag) {
+                if (postsById.get(post.no) == null) {
                     thread.posts.add(post);
-                    postsById.append(post.no, post);
+                    postsById.put(post.no, post);
                 }
             }
         }
@@ -317,26 +442,76 @@ public class ChanLoader {
             thread.archived = thread.op.archived;
         }
 
-        if (TextUtils.isEmpty(loadable.title)) {
-            if (thread.op != null) {
-                loadable.generateTitle(thread.op);
-            } else {
-                loadable.title = "/" + loadable.board + "/";
+        if (diff.full) {
+            if (TextUtils.isEmpty(loadable.title)) {
+                if (thread.op != null) {
+                    loadable.generateTitle(thread.op);
+                } else {
+                    loadable.title = "/" + loadable.board + "/";
+                }
             }
-        }
 
-        for (Post post : thread.posts) {
-            post.title = loadable.title;
+            for (Post post : thread.posts) {
+                post.title = loadable.title;
+            }
         }
 
         lastLoadTime = Time.get();
+        errorCount = 0;
 
         if (loadable.isThreadMode()) {
-            setTimer(result.size());
+            setTimer(calculateLoadDelay());
         }
 
         for (ChanLoaderCallback l : listeners) {
-            l.onChanLoaderData(thread);
+            l.onChanLoaderData(thread, diff);
+        }
+
+        return diff;
+    }
+
+    private ThreadDiff calculateDiff(List<Post> result, List<Post> refinished) {
+        ThreadDiff diff = new ThreadDiff(false);
+
+        // Their comment changed while their replies may not have
+        SparseBooleanArray refinishedNos = new SparseBooleanArray();
+        if (refinished != null) {
+            for (Post post : refinished) {
+                refinishedNos.put(post.no, true);
+            }
+        }
+
+        for (int i = 0; i < result.size(); i++) {
+            Post post = result.get(i);
+            int previous = replyCounts.get(post.no, REPLY_COUNT_UNKNOWN);
+            if (previous == REPLY_COUNT_UNKNOWN) {
+                diff.added.add(post);
+            } else if (post.deleted) {
+                if (previous != REPLY_COUNT_DELETED) {
+                    diff.deleted.add(post);
+                }
+            } else if (previous != post.repliesFrom.size() || refinishedNos.get(post.no)) {
+                diff.updated.add(post);
+            }
+        }
+
+        Post previousOp = thread.posts.get(0);
+        Post op = result.get(0);
+        if (previousOp.no != op.no || result.size() != thread.posts.size() + diff.added.size()) {
+            // Not an extension of the previous list
+            return new ThreadDiff(true);
+        }
+
+        diff.opChanged = previousOp.closed != op.closed || previousOp.archived != op.archived ||
+                previousOp.sticky != op.sticky || previousOp.replies != op.replies ||
+                previousOp.images != op.images || previousOp.uniqueIps != op.uniqueIps;
+
+        return diff;
+    }
+
+    private void updateReplyCounts(List<Post> posts) {
+        for (Post post : posts) {
+            replyCounts.put(post.no, post.deleted ? REPLY_COUNT_DELETED : post.repliesFrom.size());
         }
     }
 
@@ -353,13 +528,25 @@ public class ChanLoader {
 
         clearTimer();
 
+        // Back off from failing threads, isThreadGone stops the watching of deleted threads completely
+        lastLoadTime = Time.get();
+        loadDelay = Math.min(CLOSED_LOAD_DELAY, ERROR_LOAD_DELAY << Math.min(errorCount, 16));
+        errorCount++;
+
         for (ChanLoaderCallback l : listeners) {
             l.onChanLoaderError(error);
         }
     }
 
+    /**
+     * @return true if the error is a 404, the thread was deleted or fell off the board and will never load again.
+     */
+    public static boolean isThreadGone(VolleyError error) {
+        return error instanceof ServerError && error.networkResponse != null && error.networkResponse.statusCode == 404;
+    }
+
     public interface ChanLoaderCallback {
-        void onChanLoaderData(ChanThread result);
+        void onChanLoaderData(ChanThread result, ThreadDiff diff);
 
         void onChanLoaderError(VolleyError error);
     }
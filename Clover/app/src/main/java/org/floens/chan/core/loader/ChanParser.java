@@ -21,6 +21,8 @@ package org.floens.chan.core.loader;
 import android.content.res.TypedArray;
 import android.graphics.Typeface;
 import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
+import android.text.SpannedString;
 import android.text.TextUtils;
 import android.text.style.AbsoluteSizeSpan;
 import android.text.style.BackgroundColorSpan;
@@ -45,7 +47,14 @@ import org.jsoup.parser.Parser;
 import org.jsoup.select.NodeTraversor;
 import org.jsoup.select.NodeVisitor;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -53,6 +62,12 @@ import java.util.regex.Pattern;
 public class ChanParser {
     private static final Pattern colorPattern = Pattern.compile("color:#([0-9a-fA-F]*)");
 
+    // Tags the fast comment parser handles, anything else goes through jsoup
+    private static final Set<String> supportedTags = new HashSet<>(Arrays.asList(
+            "br", "span", "a", "s", "strong", "pre", "b", "i", "u", "em", "sub", "sup", "small", "font", "code"));
+    // The supported tags that jsoup treats as block elements, Element.text() puts a space before them
+    private static final Set<String> blockTags = new HashSet<>(Arrays.asList("s", "pre"));
+
     private static ChanParser instance = new ChanParser();
 
     public static ChanParser getInstance() {
@@ -62,20 +77,57 @@ public class ChanParser {
     public ChanParser() {
     }
 
-    public void parse(Post post) {
-        try {
-            if (!TextUtils.isEmpty(post.name)) {
-                post.name = Parser.unescapeEntities(post.name, false);
+    /**
+     * Fill the repliesTo list of the post from the raw comment, without building the comment.
+     * Only the quotelink anchors are looked at, which is a lot cheaper than {@link #parse(Post)}.
+     */
+    public void parseQuotes(Post post) {
+        post.repliesTo.clear();
+
+        String raw = post.rawComment;
+        if (raw == null) {
+            return;
+        }
+
+        int pos = 0;
+        while ((pos = raw.indexOf("<a ", pos)) >= 0) {
+            int end = raw.indexOf('>', pos);
+            if (end < 0) {
+                break;
             }
 
-            if (!TextUtils.isEmpty(post.subject)) {
-                post.subject = Parser.unescapeEntities(post.subject, false);
+            String tag = raw.substring(pos, end);
+            pos = end;
+
+            if (!hasClass(getAttribute(tag, "class"), "quotelink")) {
+                continue;
+            }
+
+            // Same as parseAnchor, links to other threads are not a reply
+            String href = getAttribute(tag, "href");
+            if (href == null || href.contains("/thread/")) {
+                continue;
+            }
+
+            String[] splitted = href.split("#p");
+            if (splitted.length == 2) {
+                try {
+                    int id = Integer.parseInt(splitted[1]);
+                    if (id >= 0) {
+                        post.repliesTo.add(id);
+                    }
+                } catch (NumberFormatException e) {
+                }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+    }
 
+    /**
+     * Build the spans and the comment of the post. Use {@link Post#ensureParsed()} instead of calling this directly.
+     */
+    public void parse(Post post) {
         if (!post.parsedSpans) {
+            // The name and subject are already unescaped by Post.finish
             TypedArray ta = ThemeHelper.getInstance().getThemedContext().obtainStyledAttributes(null, R.styleable.PostView, R.attr.post_style, 0);
             post.parsedSpans = true;
             parseSpans(post, ta);
@@ -83,10 +135,38 @@ public class ChanParser {
         }
 
         if (post.rawComment != null) {
+            post.linkables.clear();
             post.comment = parseComment(post, post.rawComment);
         }
     }
 
+    /**
+     * @return true if the space separated class list contains the class
+     */
+    private boolean hasClass(String classes, String name) {
+        if (classes == null) {
+            return false;
+        }
+
+        for (String item : classes.split(" ")) {
+            if (item.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String getAttribute(String tag, String name) {
+        int start = tag.indexOf(name + "=\"");
+        if (start < 0) {
+            return null;
+        }
+
+        start += name.length() + 2;
+        int end = tag.indexOf('"', start);
+        return end < 0 ? null : tag.substring(start, end);
+    }
+
     private void parseSpans(Post post, TypedArray ta) {
         boolean anonymize = ChanSettings.getAnonymize();
         boolean anonymizeIds = ChanSettings.getAnonymizeIds();
@@ -162,145 +242,249 @@ public class ChanParser {
     }
 
     private CharSequence parseComment(Post post, String commentRaw) {
-        CharSequence total = new SpannableString("");
+        SpannableStringBuilder total = new SpannableStringBuilder();
 
         try {
             String comment = commentRaw.replace("<wbr>", "");
 
-            Document document = Jsoup.parseBodyFragment(comment);
+            if (!parseCommentFast(post, comment, total)) {
+                // Not the simple html we expect, let jsoup figure it out
+                total.clear();
+                total.clearSpans();
+                post.linkables.clear();
+
+                Document document = Jsoup.parseBodyFragment(comment);
 
-            List<Node> nodes = document.body().childNodes();
+                List<Node> nodes = document.body().childNodes();
 
-            for (Node node : nodes) {
-                CharSequence nodeParsed = parseNode(post, node);
-                if (nodeParsed != null) {
-                    total = TextUtils.concat(total, nodeParsed);
+                for (Node node : nodes) {
+                    parseNode(post, node, total);
                 }
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
 
-        return total;
+        return new SpannedString(total);
     }
 
-    private CharSequence parseNode(Post post, Node node) {
-        if (node instanceof TextNode) {
-            String text = ((TextNode) node).text();
-            SpannableString spannable = new SpannableString(text);
+    /**
+     * Single pass parser for the html subset 4chan uses in comments. Top level text, br and elements are handled
+     * like {@link #parseNode(Post, Node, SpannableStringBuilder)} does, the text of elements is collected like
+     * {@link Element#text()}.
+     *
+     * @return false if the html is malformed or uses unsupported tags, the output should be discarded then.
+     */
+    private boolean parseCommentFast(Post post, String html, SpannableStringBuilder out) {
+        int length = html.length();
+        int pos = 0;
+        List<String> stack = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+
+        while (pos < length) {
+            int start = html.indexOf('<', pos);
+            if (start < 0) {
+                start = length;
+            }
 
-            detectLinks(post, text, spannable);
+            if (start > pos) {
+                appendText(post, normaliseWhitespace(unescape(html.substring(pos, start), false)), out);
+            }
 
-            return spannable;
-        } else {
-            switch (node.nodeName()) {
-                case "br": {
-                    return "\n";
+            if (start == length) {
+                break;
+            }
+
+            HtmlTag tag = readTag(html, start);
+            if (tag == null || tag.closing || !supportedTags.contains(tag.name)) {
+                return false;
+            }
+            pos = tag.end;
+
+            if (tag.name.equals("br")) {
+                out.append('\n');
+                continue;
+            }
+
+            // Collect the text of the element until its end tag
+            boolean preserveWhitespace = tag.name.equals("pre");
+            boolean keepBreaks = preserveWhitespace && tag.classes().contains("prettyprint");
+            text.setLength(0);
+            stack.clear();
+            stack.add(tag.name);
+
+            while (stack.size() > 0) {
+                int innerStart = html.indexOf('<', pos);
+                if (innerStart < 0) {
+                    // Unclosed element
+                    return false;
                 }
-                case "span": {
-                    Element span = (Element) node;
-
-                    SpannableString quote = null;
-
-                    Set<String> classes = span.classNames();
-                    if (classes.contains("deadlink")) {
-                        quote = new SpannableString(span.text());
-                        quote.setSpan(new ForegroundColorSpan(ThemeHelper.getInstance().getQuoteColor()), 0, quote.length(), 0);
-                        quote.setSpan(new StrikethroughSpan(), 0, quote.length(), 0);
-                    } else if (classes.contains("fortune")) {
-                        // html looks like <span class="fortune" style="color:#0893e1"><br><br><b>Your fortune:</b>
-                        // manually add these <br>
-                        quote = new SpannableString("\n\n" + span.text());
-
-                        String style = span.attr("style");
-                        if (!TextUtils.isEmpty(style)) {
-                            style = style.replace(" ", "");
-
-                            // private static final Pattern colorPattern = Pattern.compile("color:#([0-9a-fA-F]*)");
-                            Matcher matcher = colorPattern.matcher(style);
-
-                            int hexColor = 0xff0000;
-                            if (matcher.find()) {
-                                String group = matcher.group(1);
-                                if (!TextUtils.isEmpty(group)) {
-                                    try {
-                                        hexColor = Integer.parseInt(group, 16);
-                                    } catch (NumberFormatException e) {
-                                    }
-                                }
-                            }
 
-                            if (hexColor >= 0 && hexColor <= 0xffffff) {
-                                quote.setSpan(new ForegroundColorSpan(0xff000000 + hexColor), 0, quote.length(), 0);
-                                quote.setSpan(new StyleSpan(Typeface.BOLD), 0, quote.length(), 0);
-                            }
+                if (innerStart > pos) {
+                    String innerText = unescape(html.substring(pos, innerStart), false);
+                    if (!preserveWhitespace) {
+                        innerText = normaliseWhitespace(innerText);
+                        if (lastCharIsWhitespace(text)) {
+                            innerText = stripLeadingWhitespace(innerText);
                         }
-                    } else {
-                        quote = new SpannableString(span.text());
-                        quote.setSpan(new ForegroundColorSpan(ThemeHelper.getInstance().getInlineQuoteColor()), 0, quote.length(), 0);
-                        detectLinks(post, span.text(), quote);
                     }
-
-                    return quote;
+                    text.append(innerText);
                 }
-                case "strong": {
-                    Element strong = (Element) node;
 
-                    SpannableString red = new SpannableString(strong.text());
-                    red.setSpan(new ForegroundColorSpan(ThemeHelper.getInstance().getQuoteColor()), 0, red.length(), 0);
-                    red.setSpan(new StyleSpan(Typeface.BOLD), 0, red.length(), 0);
-
-                    return red;
+                HtmlTag inner = readTag(html, innerStart);
+                if (inner == null || !supportedTags.contains(inner.name) || (!inner.closing && inner.name.equals("pre"))) {
+                    return false;
                 }
-                case "a": {
-                    CharSequence anchor = parseAnchor(post, (Element) node);
-                    if (anchor != null) {
-                        return anchor;
-                    } else {
-                        return ((Element) node).text();
+                pos = inner.end;
+
+                if (inner.closing) {
+                    if (!inner.name.equals(stack.remove(stack.size() - 1))) {
+                        // Mismatched end tag
+                        return false;
+                    }
+                } else if (inner.name.equals("br")) {
+                    if (keepBreaks) {
+                        text.append('\n');
+                    } else if (text.length() > 0 && !lastCharIsWhitespace(text)) {
+                        text.append(' ');
+                    }
+                } else {
+                    if (blockTags.contains(inner.name) && text.length() > 0 && !lastCharIsWhitespace(text)) {
+                        text.append(' ');
+                    }
+                    if (!inner.selfClosing) {
+                        stack.add(inner.name);
                     }
                 }
-                case "s": {
-                    Element spoiler = (Element) node;
+            }
 
-                    SpannableString link = new SpannableString(spoiler.text());
+            appendElement(post, tag.name, tag.classes(), tag.attribute("href"), tag.attribute("style"), text.toString().trim(), out);
+        }
 
-                    PostLinkable pl = new PostLinkable(post, spoiler.text(), spoiler.text(), PostLinkable.Type.SPOILER);
-                    link.setSpan(pl, 0, link.length(), 0);
-                    post.linkables.add(pl);
+        return true;
+    }
 
-                    return link;
+    private void parseNode(Post post, Node node, SpannableStringBuilder out) {
+        if (node instanceof TextNode) {
+            appendText(post, ((TextNode) node).text(), out);
+        } else if (node instanceof Element) {
+            Element element = (Element) node;
+            String name = element.nodeName();
+            if (name.equals("br")) {
+                out.append('\n');
+            } else {
+                String text;
+                if (name.equals("pre") && element.classNames().contains("prettyprint")) {
+                    text = getNodeText(element);
+                } else {
+                    text = element.text();
                 }
-                case "pre": {
-                    Element pre = (Element) node;
-
-                    Set<String> classes = pre.classNames();
-                    if (classes.contains("prettyprint")) {
-                        String text = getNodeText(pre);
-                        SpannableString monospace = new SpannableString(text);
-                        monospace.setSpan(new TypefaceSpan("monospace"), 0, monospace.length(), 0);
-                        monospace.setSpan(new AbsoluteSizeSpan(ThemeHelper.getInstance().getCodeTagSize()), 0, monospace.length(), 0);
-                        return monospace;
-                    } else {
-                        return pre.text();
+
+                appendElement(post, name, element.classNames(), element.attr("href"), element.attr("style"), text, out);
+            }
+        }
+    }
+
+    private void appendText(Post post, String text, SpannableStringBuilder out) {
+        SpannableString spannable = new SpannableString(text);
+
+        detectLinks(post, text, spannable);
+
+        out.append(spannable);
+    }
+
+    private void appendElement(Post post, String name, Set<String> classes, String href, String style, String text, SpannableStringBuilder out) {
+        switch (name) {
+            case "span": {
+                SpannableString quote;
+
+                if (classes.contains("deadlink")) {
+                    quote = new SpannableString(text);
+                    quote.setSpan(new ForegroundColorSpan(ThemeHelper.getInstance().getQuoteColor()), 0, quote.length(), 0);
+                    quote.setSpan(new StrikethroughSpan(), 0, quote.length(), 0);
+                } else if (classes.contains("fortune")) {
+                    // html looks like <span class="fortune" style="color:#0893e1"><br><br><b>Your fortune:</b>
+                    // manually add these <br>
+                    quote = new SpannableString("\n\n" + text);
+
+                    if (!TextUtils.isEmpty(style)) {
+                        style = style.replace(" ", "");
+
+                        // private static final Pattern colorPattern = Pattern.compile("color:#([0-9a-fA-F]*)");
+                        Matcher matcher = colorPattern.matcher(style);
+
+                        int hexColor = 0xff0000;
+                        if (matcher.find()) {
+                            String group = matcher.group(1);
+                            if (!TextUtils.isEmpty(group)) {
+                                try {
+                                    hexColor = Integer.parseInt(group, 16);
+                                } catch (NumberFormatException e) {
+                                }
+                            }
+                        }
+
+                        if (hexColor >= 0 && hexColor <= 0xffffff) {
+                            quote.setSpan(new ForegroundColorSpan(0xff000000 + hexColor), 0, quote.length(), 0);
+                            quote.setSpan(new StyleSpan(Typeface.BOLD), 0, quote.length(), 0);
+                        }
                     }
+                } else {
+                    quote = new SpannableString(text);
+                    quote.setSpan(new ForegroundColorSpan(ThemeHelper.getInstance().getInlineQuoteColor()), 0, quote.length(), 0);
+                    detectLinks(post, text, quote);
                 }
-                default: {
-                    // Unknown tag, add the inner part
-                    if (node instanceof Element) {
-                        return ((Element) node).text();
-                    } else {
-                        return null;
-                    }
+
+                out.append(quote);
+                break;
+            }
+            case "strong": {
+                SpannableString red = new SpannableString(text);
+                red.setSpan(new ForegroundColorSpan(ThemeHelper.getInstance().getQuoteColor()), 0, red.length(), 0);
+                red.setSpan(new StyleSpan(Typeface.BOLD), 0, red.length(), 0);
+
+                out.append(red);
+                break;
+            }
+            case "a": {
+                CharSequence anchor = parseAnchor(post, href == null ? "" : href, classes, text);
+                if (anchor != null) {
+                    out.append(anchor);
+                } else {
+                    out.append(text);
+                }
+                break;
+            }
+            case "s": {
+                SpannableString link = new SpannableString(text);
+
+                PostLinkable pl = new PostLinkable(post, text, text, PostLinkable.Type.SPOILER);
+                link.setSpan(pl, 0, link.length(), 0);
+                post.linkables.add(pl);
+
+                out.append(link);
+                break;
+            }
+            case "pre": {
+                if (classes.contains("prettyprint")) {
+                    SpannableString monospace = new SpannableString(text);
+                    monospace.setSpan(new TypefaceSpan("monospace"), 0, monospace.length(), 0);
+                    monospace.setSpan(new AbsoluteSizeSpan(ThemeHelper.getInstance().getCodeTagSize()), 0, monospace.length(), 0);
+                    out.append(monospace);
+                } else {
+                    out.append(text);
                 }
+                break;
+            }
+            default: {
+                // Unknown tag, add the inner part
+                out.append(text);
+                break;
             }
         }
     }
 
-    private CharSequence parseAnchor(Post post, Element anchor) {
-        String href = anchor.attr("href");
-        Set<String> classes = anchor.classNames();
-
+    private CharSequence parseAnchor(Post post, String href, Set<String> classes, String text) {
         PostLinkable.Type t = null;
         String key = null;
         Object value = null;
@@ -326,7 +510,7 @@ public class ChanParser {
 
                 if (threadLink != null) {
                     t = PostLinkable.Type.THREAD;
-                    key = anchor.text() + " \u2192"; // arrow to the right
+                    key = text + " \u2192"; // arrow to the right
                     value = threadLink;
                 }
             } else {
@@ -343,9 +527,8 @@ public class ChanParser {
 
                 if (id >= 0) {
                     t = PostLinkable.Type.QUOTE;
-                    key = anchor.text();
+                    key = text;
                     value = id;
-                    post.repliesTo.add(id);
 
                     // Append OP when its a reply to OP
                     if (id == post.resto) {
@@ -353,7 +536,6 @@ public class ChanParser {
                     }
 
                     // Append You when it's a reply to an saved reply
-                    // todo synchronized
                     if (ChanApplication.getDatabaseManager().isSavedReply(post.board, id)) {
                         key += " (You)";
                     }
@@ -362,7 +544,7 @@ public class ChanParser {
         } else {
             // normal link
             t = PostLinkable.Type.LINK;
-            key = anchor.text();
+            key = text;
             value = href;
         }
 
@@ -473,4 +655,128 @@ public class ChanParser {
         }
         return false;
     }
+
+    private static String unescape(String text, boolean inAttribute) {
+        return text.indexOf('&') >= 0 ? Parser.unescapeEntities(text, inAttribute) : text;
+    }
+
+    /**
+     * Read the tag starting at the '<' at start.
+     *
+     * @return the tag, or null if it is not a well formed start or end tag
+     */
+    private static HtmlTag readTag(String html, int start) {
+        int length = html.length();
+        int pos = start + 1;
+
+        HtmlTag tag = new HtmlTag();
+        if (pos < length && html.charAt(pos) == '/') {
+            tag.closing = true;
+            pos++;
+        }
+
+        int nameStart = pos;
+        while (pos < length && isTagNameChar(html.charAt(pos), pos == nameStart)) {
+            pos++;
+        }
+        if (pos == nameStart) {
+            return null;
+        }
+        tag.name = html.substring(nameStart, pos).toLowerCase(Locale.ENGLISH);
+
+        while (true) {
+            while (pos < length && Character.isWhitespace(html.charAt(pos))) {
+                pos++;
+            }
+
+            if (pos >= length) {
+                return null;
+            }
+
+            char c = html.charAt(pos);
+            if (c == '>') {
+                tag.end = pos + 1;
+                return tag;
+            } else if (c == '/') {
+                tag.selfClosing = true;
+                pos++;
+                continue;
+            } else if (c == '<' || c == '"' || c == '\'' || c == '=') {
+                return null;
+            }
+
+            int attributeStart = pos;
+            while (pos < length && !Character.isWhitespace(c = html.charAt(pos)) && c != '=' && c != '>' && c != '/') {
+                pos++;
+            }
+            String attribute = html.substring(attributeStart, pos).toLowerCase(Locale.ENGLISH);
+
+            while (pos < length && Character.isWhitespace(html.charAt(pos))) {
+                pos++;
+            }
+
+            String value = "";
+            if (pos < length && html.charAt(pos) == '=') {
+                pos++;
+                while (pos < length && Character.isWhitespace(html.charAt(pos))) {
+                    pos++;
+                }
+                if (pos >= length) {
+                    return null;
+                }
+
+                char quote = html.charAt(pos);
+                if (quote == '"' || quote == '\'') {
+                    int valueEnd = html.indexOf(quote, pos + 1);
+                    if (valueEnd < 0) {
+                        return null;
+                    }
+                    value = html.substring(pos + 1, valueEnd);
+                    pos = valueEnd + 1;
+                } else {
+                    int valueStart = pos;
+                    while (pos < length && !Character.isWhitespace(c = html.charAt(pos)) && c != '>') {
+                        pos++;
+                    }
+                    value = html.substring(valueStart, pos);
+                }
+            }
+
+            if (tag.attributes == null) {
+                tag.attributes = new HashMap<>(4);
+            }
+            tag.attributes.put(attribute, unescape(value, true));
+        }
+    }
+
+    private static boolean isTagNameChar(char c, boolean first) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (!first && c >= '0' && c <= '9');
+    }
+
+    private static class HtmlTag {
+        public String name;
+        public boolean closing;
+        public boolean selfClosing;
+        public int end;
+        public Map<String, String> attributes;
+
+        public String attribute(String name) {
+            return attributes == null ? null : attributes.get(name);
+        }
+
+        public Set<String> classes() {
+            String classNames = attribute("class");
+            if (TextUtils.isEmpty(classNames)) {
+                return Collections.emptySet();
+            }
+
+            Set<String> classes = new HashSet<>();
+            for (String className : classNames.split("\\s+")) {
+                if (className.length() > 0) {
+                    classes.add(className);
+                }
+            }
+            return classes;
+        }
+    }
 }
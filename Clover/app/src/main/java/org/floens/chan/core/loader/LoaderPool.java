@@ -17,17 +17,40 @@
  */
 package org.floens.chan.core.loader;
 
+import android.util.LruCache;
+
+import org.floens.chan.core.model.ChanThread;
 import org.floens.chan.core.model.Loadable;
+import org.floens.chan.core.model.Post;
 
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * Shares the ChanLoaders between everything that loads the same Loadable.
+ * Released thread loaders are kept warm in a cache bounded by the estimated memory of their posts, reopening such a
+ * thread shows the loaded posts immediately and then only loads the changes.
+ */
 public class LoaderPool {
     //    private static final String TAG = "LoaderPool";
 
+    // Memory of the posts of the warm loaders, in bytes
+    private static final int WARM_CACHE_SIZE = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 16);
+
     private static LoaderPool instance = new LoaderPool();
 
+    // Keyed by copies of the loadables, ChanLoader changes the no of its loadable in board mode
     private static Map<Loadable, ChanLoader> loaders = new HashMap<>();
+    private static Map<ChanLoader, Loadable> keys = new IdentityHashMap<>();
+
+    private static LruCache<Loadable, WarmLoader> warmLoaders = new LruCache<Loadable, WarmLoader>(WARM_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(Loadable key, WarmLoader value) {
+            return value.size;
+        }
+    };
 
     public static LoaderPool getInstance() {
         return instance;
@@ -36,8 +59,15 @@ public class LoaderPool {
     public ChanLoader obtain(Loadable loadable, ChanLoader.ChanLoaderCallback listener) {
         ChanLoader chanLoader = loaders.get(loadable);
         if (chanLoader == null) {
-            chanLoader = new ChanLoader(loadable);
-            loaders.put(loadable, chanLoader);
+            Loadable key = loadable.copy();
+            WarmLoader warmLoader = warmLoaders.remove(key);
+            if (warmLoader != null) {
+                chanLoader = warmLoader.chanLoader;
+            } else {
+                chanLoader = new ChanLoader(loadable);
+            }
+            loaders.put(key, chanLoader);
+            keys.put(chanLoader, key);
         }
 
         chanLoader.addListener(listener);
@@ -46,20 +76,42 @@ public class LoaderPool {
     }
 
     public void release(ChanLoader chanLoader, ChanLoader.ChanLoaderCallback listener) {
-        ChanLoader foundChanLoader = null;
-        for (Loadable l : loaders.keySet()) {
-            if (chanLoader.getLoadable().equals(l)) {
-                foundChanLoader = loaders.get(l);
-                break;
+        Loadable key = keys.get(chanLoader);
+        if (key == null) {
+            throw new RuntimeException("The released loader does not exist");
+        }
+
+        if (chanLoader.removeListener(listener)) {
+            loaders.remove(key);
+            keys.remove(chanLoader);
+
+            ChanThread thread = chanLoader.getThread();
+            if (key.isThreadMode() && thread != null && thread.posts.size() > 0) {
+                warmLoaders.put(key, new WarmLoader(chanLoader, estimateMemory(thread)));
             }
         }
+    }
 
-        if (foundChanLoader == null) {
-            throw new RuntimeException("The released loader does not exist");
+    private static int estimateMemory(ChanThread thread) {
+        int size = 0;
+        List<Post> posts = thread.posts;
+        for (int i = 0; i < posts.size(); i++) {
+            size += posts.get(i).estimateMemory();
         }
+        return size;
+    }
 
-        if (chanLoader.removeListener(listener)) {
-            loaders.remove(chanLoader.getLoadable());
+    /**
+     * The size is estimated once when the loader is released, LruCache requires it to stay the same while the posts
+     * may still be parsed.
+     */
+    private static class WarmLoader {
+        public final ChanLoader chanLoader;
+        public final int size;
+
+        public WarmLoader(ChanLoader chanLoader, int size) {
+            this.chanLoader = chanLoader;
+            this.size = size;
         }
     }
 }
@@ -0,0 +1,144 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.floens.chan.core.loader;
+
+import android.util.SparseIntArray;
+
+import org.floens.chan.core.model.Post;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Index of the quotes between the posts of a single list. Maps post numbers to their position in the list and
+ * keeps the incoming quotes as flat int arrays, so building the repliesFrom lists is linear in the amount of quotes.
+ */
+public class ReplyGraph {
+    private final List<Post> posts;
+    private final SparseIntArray indexByNo;
+
+    public ReplyGraph(List<Post> posts) {
+        this.posts = posts;
+
+        int size = posts.size();
+        indexByNo = new SparseIntArray(size);
+        for (int i = 0; i < size; i++) {
+            // Post numbers are ascending most of the time, append is O(1) then
+            indexByNo.append(posts.get(i).no, i);
+        }
+    }
+
+    /**
+     * Get the index of the post with the given number in the list.
+     *
+     * @param no post number
+     * @return the index, or -1 if the post is not in the list
+     */
+    public int indexOf(int no) {
+        return indexByNo.get(no, -1);
+    }
+
+    /**
+     * Get the post with the given number.
+     *
+     * @param no post number
+     * @return the post, or null if the post is not in the list
+     */
+    public Post get(int no) {
+        int index = indexOf(no);
+        return index < 0 ? null : posts.get(index);
+    }
+
+    public List<Post> getPosts() {
+        return posts;
+    }
+
+    /**
+     * Rebuild the repliesFrom list of every post. Deleted posts do not count as a reply, and lose their own
+     * repliesTo and repliesFrom.
+     *
+     * @return the posts that had a reply from a post that is now deleted, these need to be parsed again.
+     */
+    public List<Post> build() {
+        int size = posts.size();
+        int[] counts = new int[size + 1];
+
+        // Count the incoming quotes per post
+        for (int i = 0; i < size; i++) {
+            Post post = posts.get(i);
+            if (!post.deleted) {
+                for (int j = 0; j < post.repliesTo.size(); j++) {
+                    int target = indexOf(post.repliesTo.get(j));
+                    if (target >= 0) {
+                        counts[target + 1]++;
+                    }
+                }
+            }
+        }
+
+        // Incoming quotes for post i are the indexes in from[offsets[i]] until from[offsets[i + 1]]
+        int[] offsets = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            offsets[i + 1] = offsets[i] + counts[i + 1];
+        }
+
+        // Fill the edges, counts is reused as the write position per post
+        int[] from = new int[offsets[size]];
+        for (int i = 0; i < size; i++) {
+            counts[i] = offsets[i];
+        }
+        for (int i = 0; i < size; i++) {
+            Post post = posts.get(i);
+            if (!post.deleted) {
+                for (int j = 0; j < post.repliesTo.size(); j++) {
+                    int target = indexOf(post.repliesTo.get(j));
+                    // Skip a post quoting the same post twice
+                    if (target >= 0 && (counts[target] == offsets[target] || from[counts[target] - 1] != i)) {
+                        from[counts[target]++] = i;
+                    }
+                }
+            }
+        }
+
+        List<Post> replyingToDeleted = new ArrayList<>();
+        boolean[] marked = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            Post post = posts.get(i);
+            if (!post.deleted) {
+                post.repliesFrom.clear();
+                for (int j = offsets[i]; j < counts[i]; j++) {
+                    post.repliesFrom.add(posts.get(from[j]).no);
+                }
+            } else {
+                post.repliesTo.clear();
+
+                for (int j = 0; j < post.repliesFrom.size(); j++) {
+                    int replying = indexOf(post.repliesFrom.get(j));
+                    if (replying >= 0 && !marked[replying]) {
+                        marked[replying] = true;
+                        replyingToDeleted.add(posts.get(replying));
+                    }
+                }
+
+                post.repliesFrom.clear();
+            }
+        }
+
+        return replyingToDeleted;
+    }
+}
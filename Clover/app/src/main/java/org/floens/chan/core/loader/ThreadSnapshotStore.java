@@ -0,0 +1,348 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.floens.chan.core.loader;
+
+import org.floens.chan.ChanApplication;
+import org.floens.chan.core.model.Loadable;
+import org.floens.chan.core.model.Post;
+import org.floens.chan.utils.AndroidUtils;
+import org.floens.chan.utils.IOUtils;
+import org.floens.chan.utils.Logger;
+import org.floens.chan.utils.Time;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Stores the posts of loaded threads on disk, so a thread shows immediately after a restart and can be read offline.
+ * A snapshot holds the raw post fields and the reply graph, the comments are parsed again when shown.
+ * Snapshots are read and written on a single background thread, the oldest are removed when there are more than
+ * maxSnapshots.
+ */
+public class ThreadSnapshotStore {
+    private static final String TAG = "ThreadSnapshotStore";
+
+    private static final int MAGIC = 0x434c5453;
+    private static final int VERSION = 1;
+    private static final String EXTENSION = ".snapshot";
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private final File directory;
+    private final int maxSnapshots;
+
+    public ThreadSnapshotStore(File directory, int maxSnapshots) {
+        this.directory = directory;
+        this.maxSnapshots = maxSnapshots;
+    }
+
+    /**
+     * Read the snapshot of the thread in the background.
+     *
+     * @param callback called on the ui thread, with null if there was no usable snapshot
+     */
+    public void read(final Loadable loadable, final SnapshotCallback callback) {
+        final File file = getFile(loadable);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Post> posts = file.exists() ? readFile(file, loadable) : null;
+                AndroidUtils.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSnapshot(posts);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Write a snapshot of the thread in the background.
+     *
+     * @param data  the posts serialized with {@link #writePosts(DataOutputStream, List)}, by the thread that loaded
+     *              them because the next load changes them
+     * @param count the amount of posts, for logging
+     */
+    public void write(Loadable loadable, final byte[] data, final int count) {
+        final File file = getFile(loadable);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeFile(file, data, count);
+            }
+        });
+    }
+
+    public void delete(Loadable loadable) {
+        final File file = getFile(loadable);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (file.exists() && !file.delete()) {
+                    Logger.e(TAG, "Could not delete snapshot " + file.getName());
+                }
+            }
+        });
+    }
+
+    private File getFile(Loadable loadable) {
+        return new File(directory, loadable.board + "_" + loadable.no + EXTENSION);
+    }
+
+    private List<Post> readFile(File file, Loadable loadable) {
+        long start = Time.get();
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            List<Post> posts = readPosts(is, loadable);
+            if (posts == null) {
+                Logger.w(TAG, "Ignoring snapshot with an unknown format " + file.getName());
+            } else {
+                Logger.d(TAG, "Read snapshot of " + posts.size() + " posts, took " + Time.get(start) + "ms");
+            }
+            return posts;
+        } catch (IOException e) {
+            Logger.e(TAG, "Error reading snapshot " + file.getName(), e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    private void writeFile(File file, byte[] data, int count) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Logger.e(TAG, "Could not create the snapshot directory");
+            return;
+        }
+
+        long start = Time.get();
+        File temp = new File(directory, file.getName() + ".tmp");
+        OutputStream os = null;
+        boolean written = false;
+        try {
+            os = new FileOutputStream(temp);
+            os.write(data);
+            os.close();
+            os = null;
+            written = true;
+        } catch (IOException e) {
+            Logger.e(TAG, "Error writing snapshot " + file.getName(), e);
+        } finally {
+            IOUtils.closeQuietly(os);
+        }
+
+        if (written && temp.renameTo(file)) {
+            Logger.d(TAG, "Wrote snapshot of " + count + " posts, took " + Time.get(start) + "ms");
+            trim();
+        } else if (!temp.delete()) {
+            Logger.e(TAG, "Could not delete " + temp.getName());
+        }
+    }
+
+    private void trim() {
+        File[] files = directory.listFiles();
+        if (files == null || files.length <= maxSnapshots) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; i < files.length - maxSnapshots; i++) {
+            if (!files[i].delete()) {
+                Logger.e(TAG, "Could not delete snapshot " + files[i].getName());
+            }
+        }
+    }
+
+    /**
+     * Write the posts in the snapshot format.
+     */
+    public static void writePosts(DataOutputStream os, List<Post> posts) throws IOException {
+        os.writeInt(MAGIC);
+        os.writeInt(VERSION);
+        os.writeInt(posts.size());
+        for (int i = 0; i < posts.size(); i++) {
+            writePost(os, posts.get(i));
+        }
+    }
+
+    /**
+     * Read and finish posts in the snapshot format.
+     *
+     * @return the posts, or null if the format is unknown or the posts are not of the board of the loadable
+     */
+    public static List<Post> readPosts(DataInputStream is, Loadable loadable) throws IOException {
+        if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+            return null;
+        }
+
+        int count = is.readInt();
+        List<Post> posts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Post post = readPost(is);
+            if (!post.board.equals(loadable.board)) {
+                return null;
+            }
+
+            if (post.finishFromSnapshot()) {
+                post.isSavedReply = ChanApplication.getDatabaseManager().isSavedReply(post.board, post.no);
+                posts.add(post);
+            }
+        }
+
+        return posts;
+    }
+
+    private static Post readPost(DataInputStream is) throws IOException {
+        Post post = new Post();
+        post.board = is.readUTF();
+        post.no = is.readInt();
+        post.resto = is.readInt();
+        post.date = readString(is);
+        post.name = is.readUTF();
+        post.rawComment = readString(is);
+        post.subject = is.readUTF();
+        post.tim = is.readLong();
+        post.ext = readString(is);
+        post.filename = readString(is);
+        post.replies = is.readInt();
+        post.imageWidth = is.readInt();
+        post.imageHeight = is.readInt();
+        post.fileSize = is.readInt();
+        post.images = is.readInt();
+        post.sticky = is.readBoolean();
+        post.closed = is.readBoolean();
+        post.archived = is.readBoolean();
+        post.spoiler = is.readBoolean();
+        post.deleted = is.readBoolean();
+        post.tripcode = is.readUTF();
+        post.id = is.readUTF();
+        post.capcode = is.readUTF();
+        post.country = is.readUTF();
+        post.countryName = is.readUTF();
+        post.time = is.readLong();
+        post.uniqueIps = is.readInt();
+
+        int repliesTo = is.readInt();
+        for (int i = 0; i < repliesTo; i++) {
+            post.repliesTo.add(is.readInt());
+        }
+        int repliesFrom = is.readInt();
+        for (int i = 0; i < repliesFrom; i++) {
+            post.repliesFrom.add(is.readInt());
+        }
+
+        return post;
+    }
+
+    private static void writePost(DataOutputStream os, Post post) throws IOException {
+        os.writeUTF(post.board);
+        os.writeInt(post.no);
+        os.writeInt(post.resto);
+        writeString(os, post.date);
+        os.writeUTF(nonNull(post.name));
+        writeString(os, post.rawComment);
+        os.writeUTF(nonNull(post.subject));
+        os.writeLong(post.tim);
+        writeString(os, post.ext);
+        writeString(os, post.filename);
+        os.writeInt(post.replies);
+        os.writeInt(post.imageWidth);
+        os.writeInt(post.imageHeight);
+        os.writeInt(post.fileSize);
+        os.writeInt(post.images);
+        os.writeBoolean(post.sticky);
+        os.writeBoolean(post.closed);
+        os.writeBoolean(post.archived);
+        os.writeBoolean(post.spoiler);
+        os.writeBoolean(post.deleted);
+        os.writeUTF(nonNull(post.tripcode));
+        os.writeUTF(nonNull(post.id));
+        os.writeUTF(nonNull(post.capcode));
+        os.writeUTF(nonNull(post.country));
+        os.writeUTF(nonNull(post.countryName));
+        os.writeLong(post.time);
+        os.writeInt(post.uniqueIps);
+
+        int[] repliesTo = post.repliesTo.toArray();
+        os.writeInt(repliesTo.length);
+        for (int no : repliesTo) {
+            os.writeInt(no);
+        }
+        int[] repliesFrom = post.repliesFrom.toArray();
+        os.writeInt(repliesFrom.length);
+        for (int no : repliesFrom) {
+            os.writeInt(no);
+        }
+    }
+
+    private static String nonNull(String string) {
+        return string == null ? "" : string;
+    }
+
+    /**
+     * Strings that can be null or longer than writeUTF allows, the comment of a post can be.
+     */
+    private static void writeString(DataOutputStream os, String string) throws IOException {
+        if (string == null) {
+            os.writeInt(-1);
+        } else {
+            byte[] bytes = string.getBytes("UTF-8");
+            os.writeInt(bytes.length);
+            os.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream is) throws IOException {
+        int length = is.readInt();
+        if (length < 0) {
+            return null;
+        } else {
+            byte[] bytes = new byte[length];
+            is.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+    }
+
+    public interface SnapshotCallback {
+        /**
+         * @param posts the posts of the snapshot, or null if there was none
+         */
+        void onSnapshot(List<Post> posts);
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.floens.chan.core.manager;
+
+import org.floens.chan.ChanApplication;
+import org.floens.chan.core.loader.ThreadSnapshotStore;
+import org.floens.chan.core.model.Loadable;
+import org.floens.chan.core.model.Post;
+import org.floens.chan.utils.AndroidUtils;
+import org.floens.chan.utils.FileCache;
+import org.floens.chan.utils.IOUtils;
+import org.floens.chan.utils.Logger;
+import org.floens.chan.utils.ThreadPack;
+import org.floens.chan.utils.Time;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Archives threads with their thumbnails and media into a {@link ThreadPack} per thread, so they can be read
+ * without network. The media is downloaded through the FileCache, a few files at a time.
+ * Packs are written on a single background thread and read on another, so opening a thread does not wait for an
+ * archive that is being written. The last opened packs stay open, and their media is used by the FileCache instead
+ * of downloading it.
+ */
+public class ArchiveManager {
+    private static final String TAG = "ArchiveManager";
+
+    private static final int MAX_PARALLEL_DOWNLOADS = 3;
+    private static final int MAX_OPEN_PACKS = 4;
+    private static final String EXTENSION = ".pack";
+    private static final String ENTRY_THREAD = "thread";
+    private static final String ENTRY_FILE_PREFIX = "file/";
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static final ExecutorService readExecutor = Executors.newSingleThreadExecutor();
+
+    private final File directory;
+    // Opened packs by file name in access order, guarded by itself
+    private final Map<String, ThreadPack> openPacks =
+            new LinkedHashMap<String, ThreadPack>(MAX_OPEN_PACKS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ThreadPack> eldest) {
+                    if (size() > MAX_OPEN_PACKS) {
+                        IOUtils.closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+    // File names of the packs being written, only used on the ui thread
+    private final Set<String> archiving = new HashSet<>();
+
+    public ArchiveManager(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Archive the posts with their thumbnails and media. Files that are already in the pack are not downloaded again.
+     * The posts are serialized on the calling thread, because the next load changes them.
+     *
+     * @param callback called on the ui thread when done
+     * @return false if the thread is already being archived
+     */
+    public boolean archive(final Loadable loadable, List<Post> posts, final ArchiveCallback callback) {
+        final File file = getFile(loadable);
+        if (!archiving.add(file.getName())) {
+            return false;
+        }
+
+        final byte[] thread;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ThreadSnapshotStore.writePosts(new DataOutputStream(bytes), posts);
+            thread = bytes.toByteArray();
+        } catch (IOException e) {
+            Logger.e(TAG, "Error serializing thread", e);
+            archiving.remove(file.getName());
+            return false;
+        }
+
+        final List<String> fileUrls = new ArrayList<>();
+        for (Post post : posts) {
+            if (post.hasImage) {
+                fileUrls.add(post.thumbnailUrl);
+                fileUrls.add(post.imageUrl);
+            }
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!directory.exists() && !directory.mkdirs()) {
+                    Logger.e(TAG, "Could not create the archive directory");
+                    postResult(file, callback, false, 0);
+                    return;
+                }
+
+                ThreadPack.Writer writer = null;
+                try {
+                    writer = new ThreadPack.Writer(file);
+                    writer.add(ENTRY_THREAD, thread);
+
+                    final List<String> urls = new ArrayList<>();
+                    for (String url : fileUrls) {
+                        if (!writer.contains(ENTRY_FILE_PREFIX + url)) {
+                            urls.add(url);
+                        }
+                    }
+
+                    final ArchiveTask task = new ArchiveTask(file, writer, urls, callback);
+                    writer = null;
+                    AndroidUtils.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            task.start();
+                        }
+                    });
+                } catch (IOException e) {
+                    Logger.e(TAG, "Error archiving thread", e);
+                    postResult(file, callback, false, 0);
+                } finally {
+                    if (writer != null) {
+                        writer.abort();
+                    }
+                }
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Read the posts of the thread in the background, from its pack if it was archived or else from the
+     * {@link ThreadSnapshotStore}. The pack stays open for its media.
+     *
+     * @param callback called on the ui thread, with null if there were no usable posts
+     */
+    public void readPosts(final Loadable loadable, final ThreadSnapshotStore.SnapshotCallback callback) {
+        final File file = getFile(loadable);
+        readExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Post> posts = null;
+                if (file.exists()) {
+                    long start = Time.get();
+                    try {
+                        ThreadPack pack = openPack(file);
+                        InputStream is = pack.open(ENTRY_THREAD);
+                        if (is != null) {
+                            posts = ThreadSnapshotStore.readPosts(new DataInputStream(is), loadable);
+                        }
+                        Logger.d(TAG, "Read archived thread, took " + Time.get(start) + "ms");
+                    } catch (IOException e) {
+                        Logger.e(TAG, "Error reading archived thread " + file.getName(), e);
+                    }
+                }
+
+                if (posts == null) {
+                    ChanApplication.getThreadSnapshotStore().read(loadable, callback);
+                    return;
+                }
+
+                final List<Post> result = posts;
+                AndroidUtils.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSnapshot(result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Find the file with this url in the opened packs.
+     *
+     * @return a stream of the file, or null if no opened pack has it
+     */
+    public InputStream openFile(String url) {
+        synchronized (openPacks) {
+            for (ThreadPack pack : openPacks.values()) {
+                InputStream is = pack.open(ENTRY_FILE_PREFIX + url);
+                if (is != null) {
+                    return is;
+                }
+            }
+        }
+        return null;
+    }
+
+    private ThreadPack openPack(File file) throws IOException {
+        synchronized (openPacks) {
+            ThreadPack pack = openPacks.get(file.getName());
+            if (pack == null) {
+                pack = new ThreadPack(file);
+                openPacks.put(file.getName(), pack);
+            }
+            return pack;
+        }
+    }
+
+    private void closePack(File file) {
+        synchronized (openPacks) {
+            IOUtils.closeQuietly(openPacks.remove(file.getName()));
+        }
+    }
+
+    private File getFile(Loadable loadable) {
+        return new File(directory, loadable.board + "_" + loadable.no + EXTENSION);
+    }
+
+    private void postResult(final File file, final ArchiveCallback callback, final boolean success, final int failed) {
+        AndroidUtils.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                archiving.remove(file.getName());
+                callback.onArchiveDone(success, failed);
+            }
+        });
+    }
+
+    /**
+     * Downloads the files with at most MAX_PARALLEL_DOWNLOADS at the same time. The downloads are started and
+     * finished on the ui thread, the writer is only used on the executor.
+     */
+    private class ArchiveTask {
+        private final File file;
+        private final ThreadPack.Writer writer;
+        private final List<String> urls;
+        private final ArchiveCallback callback;
+        private int next = 0;
+        private int running = 0;
+        private int failed = 0;
+        // Only used on the executor
+        private int writeFailed = 0;
+
+        public ArchiveTask(File file, ThreadPack.Writer writer, List<String> urls, ArchiveCallback callback) {
+            this.file = file;
+            this.writer = writer;
+            this.urls = urls;
+            this.callback = callback;
+        }
+
+        public void start() {
+            Logger.d(TAG, "Archiving " + urls.size() + " files");
+            downloadNext();
+        }
+
+        private void downloadNext() {
+            while (running < MAX_PARALLEL_DOWNLOADS && next < urls.size()) {
+                final String url = urls.get(next++);
+                running++;
+                // Kept in the cache until added to the pack
+                final FileCache fileCache = ChanApplication.getFileCache();
+                final File cached = fileCache.get(url);
+                fileCache.pin(cached);
+                fileCache.downloadFile(url, new FileCache.DownloadedCallback() {
+                    @Override
+                    public void onProgress(long downloaded, long total, boolean done) {
+                    }
+
+                    @Override
+                    public void onSuccess(final File downloaded) {
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                addFile(url, downloaded);
+                                fileCache.unpin(cached);
+                            }
+                        });
+                        onDownloadDone();
+                    }
+
+                    @Override
+                    public void onFail(boolean notFound) {
+                        fileCache.unpin(cached);
+                        failed++;
+                        onDownloadDone();
+                    }
+                });
+            }
+
+            if (running == 0 && next >= urls.size()) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        finish();
+                    }
+                });
+            }
+        }
+
+        private void onDownloadDone() {
+            running--;
+            downloadNext();
+        }
+
+        private void addFile(String url, File downloaded) {
+            InputStream is = null;
+            try {
+                is = new FileInputStream(downloaded);
+                writer.add(ENTRY_FILE_PREFIX + url, is);
+            } catch (IOException e) {
+                Logger.e(TAG, "Error adding " + url + " to the archive", e);
+                writeFailed++;
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+        }
+
+        private void finish() {
+            boolean success;
+            try {
+                // Replaces the pack, an aborted write keeps the previous one
+                writer.close();
+                success = true;
+            } catch (IOException e) {
+                Logger.e(TAG, "Error writing the archive", e);
+                success = false;
+            }
+
+            // Opened again with the new index on the next read
+            closePack(file);
+            postResult(file, callback, success, failed + writeFailed);
+        }
+    }
+
+    public interface ArchiveCallback {
+        /**
+         * @param success false if the archive could not be written
+         * @param failed  the amount of files that could not be downloaded
+         */
+        void onArchiveDone(boolean success, int failed);
+    }
+}
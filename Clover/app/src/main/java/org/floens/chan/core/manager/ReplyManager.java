@@ -70,7 +70,7 @@ public class ReplyManager {
         this.context = context;
         draft = new Reply();
 
-        client = new OkHttpClient();
+        client = ChanApplication.getHttpClient().clone();
         client.setConnectTimeout(TIMEOUT, TimeUnit.MILLISECONDS);
         client.setReadTimeout(TIMEOUT, TimeUnit.MILLISECONDS);
         client.setWriteTimeout(TIMEOUT, TimeUnit.MILLISECONDS);
@@ -51,6 +51,7 @@ import org.floens.chan.core.model.Pin;
 import org.floens.chan.core.model.Post;
 import org.floens.chan.core.model.PostLinkable;
 import org.floens.chan.core.model.SavedReply;
+import org.floens.chan.core.model.ThreadDiff;
 import org.floens.chan.ui.activity.ReplyActivity;
 import org.floens.chan.ui.fragment.PostRepliesFragment;
 import org.floens.chan.ui.fragment.ReplyFragment;
@@ -182,7 +183,7 @@ public class ThreadManager implements ChanLoader.ChanLoaderCallback {
     }
 
     @Override
-    public void onChanLoaderData(ChanThread thread) {
+    public void onChanLoaderData(ChanThread thread, ThreadDiff diff) {
         if (!isWatching()) {
             chanLoader.setAutoLoadMore(false);
         }
@@ -264,6 +265,7 @@ public class ThreadManager implements ChanLoader.ChanLoaderCallback {
                         ChanApplication.getReplyManager().quote(post.no);
                         break;
                     case 1: // Quote inline
+                        post.ensureParsed();
                         ChanApplication.getReplyManager().quoteInline(post.no, post.comment.toString());
                         break;
                     case 2: // Info
@@ -273,6 +275,7 @@ public class ThreadManager implements ChanLoader.ChanLoaderCallback {
                         showPostLinkables(post);
                         break;
                     case 4: // Copy text
+                        post.ensureParsed();
                         copyToClipboard(post.comment.toString());
                         break;
                     case 5: // Report
@@ -381,6 +384,7 @@ public class ThreadManager implements ChanLoader.ChanLoaderCallback {
      */
     public void showPostLinkables(Post post) {
         AlertDialog.Builder builder = new AlertDialog.Builder(activity);
+        post.ensureParsed();
         final ArrayList<PostLinkable> linkables = post.linkables;
 
         if (linkables.size() > 0) {
@@ -404,7 +408,8 @@ public class ThreadManager implements ChanLoader.ChanLoaderCallback {
     public void showPostReplies(Post post) {
         RepliesPopup l = new RepliesPopup();
         List<Post> p = new ArrayList<>();
-        for (int no : post.repliesFrom) {
+        // A copy, a running load may rebuild the list
+        for (int no : post.getRepliesFrom().toArray()) {
             Post r = findPostById(no);
             if (r != null) {
                 p.add(r);
@@ -25,6 +25,8 @@ import org.floens.chan.core.model.Loadable;
 import org.floens.chan.core.model.Pin;
 import org.floens.chan.core.model.Post;
 import org.floens.chan.core.settings.ChanSettings;
+import org.floens.chan.core.watch.PinWatcher;
+import org.floens.chan.core.watch.WatchScheduler;
 import org.floens.chan.ui.service.WatchNotifier;
 import org.floens.chan.utils.AndroidUtils;
 import org.floens.chan.utils.Logger;
@@ -45,6 +47,7 @@ public class WatchManager {
 
     private final Context context;
     private final List<Pin> pins;
+    private final WatchScheduler watchScheduler = new WatchScheduler();
     private ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
     private PendingTimer pendingTimer;
 
@@ -160,6 +163,7 @@ public class WatchManager {
      */
     public void removePin(Pin pin) {
         pins.remove(pin);
+        watchScheduler.remove(pin);
         pin.destroyWatcher();
         ChanApplication.getDatabaseManager().removePin(pin);
 
@@ -169,7 +173,7 @@ public class WatchManager {
     }
 
     /**
-     * Update the pin in the database
+     * Update the pin in the database, the write is queued and happens in the background.
      *
      * @param pin
      */
@@ -205,6 +209,8 @@ public class WatchManager {
         updateTimerState(false);
         updateNotificationServiceState();
         updatePinWatchers();
+        // A watch load may have finished, start the next one
+        watchScheduler.dispatch();
     }
 
     public void invokeLoadNow() {
@@ -294,12 +300,22 @@ public class WatchManager {
     }
 
     private void updateTimerState(boolean watchEnabled, boolean backgroundEnabled, boolean invokeLoadNow) {
-        if (watchEnabled) {
+        // Every pin has its own time until the next load, based on how active the thread is
+        int nextLoad = getSecondsUntilNextLoad();
+        if (watchEnabled && nextLoad < 0) {
+            // All watched threads are gone or loading, the timer is set again when a load finished
+            if (pendingTimer != null) {
+                pendingTimer.cancel();
+                pendingTimer = null;
+                Logger.d(TAG, "Canceled timer");
+            }
+        } else if (watchEnabled) {
             if (ChanApplication.getInstance().getApplicationInForeground()) {
-                setTimer(invokeLoadNow ? 1 : FOREGROUND_TIME);
+                setTimer(invokeLoadNow ? 1 : Math.max(1, Math.min(FOREGROUND_TIME, nextLoad)));
             } else {
                 if (backgroundEnabled) {
-                    setTimer(Integer.parseInt(ChanSettings.watchBackgroundTimeout.get()));
+                    // Do not wake up before a pin is due
+                    setTimer(Math.max(Integer.parseInt(ChanSettings.watchBackgroundTimeout.get()), nextLoad));
                 } else {
                     if (pendingTimer != null) {
                         pendingTimer.cancel();
@@ -317,6 +333,26 @@ public class WatchManager {
         }
     }
 
+    /**
+     * @return the seconds until the first watching pin is due for a load, or -1 if no pin will load anymore.
+     * Pins that are loading or queued are skipped, the timer is updated again when their load finished.
+     */
+    private int getSecondsUntilNextLoad() {
+        long next = -1L;
+        for (Pin pin : getWatchingPins()) {
+            PinWatcher watcher = pin.getPinWatcher();
+            if (!pin.isError && (watcher == null || (!watcher.isLoading() && !watchScheduler.isQueued(pin)))) {
+                // A pin without a watcher yet loads as soon as the watcher is created
+                long time = watcher == null ? 0L : Math.max(0L, watcher.getTimeUntilNextLoad());
+                if (next < 0L || time < next) {
+                    next = time;
+                }
+            }
+        }
+
+        return next < 0L ? -1 : (int) Math.min(Integer.MAX_VALUE, (next + 999L) / 1000L);
+    }
+
     private void setTimer(int time) {
         if (pendingTimer != null && pendingTimer.time == time) {
             return;
@@ -347,11 +383,8 @@ public class WatchManager {
 //        Logger.d(TAG, "Timer fired");
         pendingTimer = null;
 
-        for (Pin pin : getWatchingPins()) {
-            if (pin.update()) {
-                EventBus.getDefault().post(new PinChangedMessage(pin));
-            }
-        }
+        // The scheduler spreads the loads of the pins that are due
+        watchScheduler.enqueue(getWatchingPins());
 
         updateTimerState(false);
     }
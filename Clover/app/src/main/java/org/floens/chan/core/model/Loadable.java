@@ -51,6 +51,10 @@ public class Loadable {
 
     public int lastViewed = -1;
 
+    public int getId() {
+        return id;
+    }
+
     /**
      * Constructs an empty loadable. The mode is INVALID.
      */
@@ -107,6 +111,14 @@ public class Loadable {
         return mode == other.mode && board.equals(other.board) && no == other.no;
     }
 
+    @Override
+    public int hashCode() {
+        int result = mode;
+        result = 31 * result + board.hashCode();
+        result = 31 * result + no;
+        return result;
+    }
+
     public boolean isBoardMode() {
         return mode == Mode.BOARD;
     }
@@ -23,10 +23,10 @@ import android.text.TextUtils;
 import org.floens.chan.ChanApplication;
 import org.floens.chan.chan.ChanUrls;
 import org.floens.chan.core.loader.ChanParser;
+import org.floens.chan.utils.IntList;
 import org.jsoup.parser.Parser;
 
 import java.util.ArrayList;
-import java.util.List;
 import java.util.Random;
 
 /**
@@ -40,6 +40,8 @@ public class Post {
     }
 
     public static String generateTitle(Post post, int maxLength) {
+        post.ensureParsed();
+
         if (!TextUtils.isEmpty(post.subject)) {
             return post.subject;
         } else if (!TextUtils.isEmpty(post.comment)) {
@@ -87,17 +89,23 @@ public class Post {
     public boolean deleted = false;
 
     /**
-     * This post replies to the these ids
+     * This post replies to the these ids. Filled by the loader, use {@link #getRepliesTo()} elsewhere.
      */
-    public List<Integer> repliesTo = new ArrayList<>();
+    public final IntList repliesTo = new IntList();
 
     /**
-     * These ids replied to this post
+     * These ids replied to this post. Filled by the loader, use {@link #getRepliesFrom()} elsewhere.
      */
-    public List<Integer> repliesFrom = new ArrayList<>();
+    public final IntList repliesFrom = new IntList();
+
+    private final IntList repliesToView = repliesTo.readOnly();
+    private final IntList repliesFromView = repliesFrom.readOnly();
 
     public final ArrayList<PostLinkable> linkables = new ArrayList<>();
     public boolean parsedSpans = false;
+    private boolean parsed = false;
+    // Set when the filename, name and subject are unescaped, finish can be called again on the same post
+    private boolean unescaped = false;
     public SpannableString subjectSpan;
     public SpannableString nameSpan;
     public SpannableString tripcodeSpan;
@@ -114,6 +122,58 @@ public class Post {
      * @return false if this data is invalid
      */
     public boolean finish() {
+        if (!validate())
+            return false;
+
+        // Unescaped here instead of when parsing, so the stored name and subject are always unescaped
+        if (!unescaped) {
+            unescaped = true;
+
+            if (hasImage) {
+                filename = Parser.unescapeEntities(filename, false);
+            }
+
+            if (name != null && name.indexOf('&') >= 0) {
+                name = Parser.unescapeEntities(name, false);
+            }
+
+            if (subject != null && subject.indexOf('&') >= 0) {
+                subject = Parser.unescapeEntities(subject, false);
+            }
+        }
+
+        buildUrls();
+
+        // Only the quotes are needed for the reply graph, the comment is parsed when the post is shown
+        ChanParser.getInstance().parseQuotes(this);
+        synchronized (this) {
+            parsed = false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Finish up a post read from a {@link org.floens.chan.core.loader.ThreadSnapshotStore} snapshot.
+     * The text is already unescaped and the replies are already set, only the urls are built.
+     *
+     * @return false if this data is invalid
+     */
+    public boolean finishFromSnapshot() {
+        if (!validate())
+            return false;
+
+        unescaped = true;
+        buildUrls();
+
+        synchronized (this) {
+            parsed = false;
+        }
+
+        return true;
+    }
+
+    private boolean validate() {
         if (board == null)
             return false;
 
@@ -125,10 +185,14 @@ public class Post {
         if (isOP && (replies < 0 || images < 0))
             return false;
 
-        if (filename != null && ext != null && imageWidth > 0 && imageHeight > 0 && tim >= 0) {
-            hasImage = true;
+        hasImage = filename != null && ext != null && imageWidth > 0 && imageHeight > 0 && tim >= 0;
+
+        return true;
+    }
+
+    private void buildUrls() {
+        if (hasImage) {
             imageUrl = ChanUrls.getImageUrl(board, Long.toString(tim), ext);
-            filename = Parser.unescapeEntities(filename, false);
 
             if (spoiler) {
                 Board b = ChanApplication.getBoardManager().getBoardByValue(board);
@@ -146,9 +210,45 @@ public class Post {
             Board b = ChanApplication.getBoardManager().getBoardByValue(board);
             countryUrl = b.trollFlags ? ChanUrls.getTrollCountryFlagUrl(country) : ChanUrls.getCountryFlagUrl(country);
         }
+    }
 
-        ChanParser.getInstance().parse(this);
+    /**
+     * Build the comment and the name and subject spans if that was not done yet.
+     * This is done lazily because it is the most expensive part of loading a post, and most posts of a big thread
+     * are never shown. Call this before using comment, linkables or any of the spans.
+     */
+    public synchronized void ensureParsed() {
+        if (!parsed) {
+            parsed = true;
+            ChanParser.getInstance().parse(this);
+        }
+    }
 
-        return true;
+    /**
+     * @return a read only view of the ids this post replies to
+     */
+    public IntList getRepliesTo() {
+        return repliesToView;
+    }
+
+    /**
+     * @return a read only view of the ids that replied to this post, rebuilt by every load
+     */
+    public IntList getRepliesFrom() {
+        return repliesFromView;
+    }
+
+    /**
+     * Rough estimate of the memory this post uses in bytes, for sizing caches.
+     * Strings count two bytes per char, the raw comment counts triple for the parsed comment and its spans.
+     * Does not depend on whether the post was parsed, so the estimate of a post that does not change is stable.
+     */
+    public int estimateMemory() {
+        int size = 512;
+        size += rawComment == null ? 0 : rawComment.length() * 6;
+        size += (name.length() + subject.length() + (filename == null ? 0 : filename.length())) * 2;
+        size += ((thumbnailUrl == null ? 0 : thumbnailUrl.length()) + (imageUrl == null ? 0 : imageUrl.length())) * 2;
+        size += (repliesTo.size() + repliesFrom.size()) * 4;
+        return size;
     }
 }
@@ -0,0 +1,79 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.floens.chan.core.model;
+
+import android.util.SparseBooleanArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The changes of a {@link ChanThread} since the previous load.
+ * When full is true the whole thread should be considered changed and the lists are empty.
+ */
+public class ThreadDiff {
+    public final boolean full;
+
+    /**
+     * Posts that were not in the previous load, these are appended to the end of the thread.
+     */
+    public final List<Post> added = new ArrayList<>();
+
+    /**
+     * Posts that were deleted since the previous load. They stay in the thread with deleted set.
+     */
+    public final List<Post> deleted = new ArrayList<>();
+
+    /**
+     * Posts whose replies changed, that reappeared after being deleted, or that were finished again because a post
+     * they quote was deleted.
+     */
+    public final List<Post> updated = new ArrayList<>();
+
+    /**
+     * The OP was replaced with one that has a different status or counts.
+     */
+    public boolean opChanged = false;
+
+    private SparseBooleanArray changedNos;
+
+    public ThreadDiff(boolean full) {
+        this.full = full;
+    }
+
+    public boolean hasChanges() {
+        return full || opChanged || added.size() > 0 || deleted.size() > 0 || updated.size() > 0;
+    }
+
+    /**
+     * @return true if the post is in the deleted or updated list
+     */
+    public boolean isChanged(Post post) {
+        if (changedNos == null) {
+            changedNos = new SparseBooleanArray(deleted.size() + updated.size());
+            for (Post item : deleted) {
+                changedNos.put(item.no, true);
+            }
+            for (Post item : updated) {
+                changedNos.put(item.no, true);
+            }
+        }
+
+        return changedNos.get(post.no);
+    }
+}
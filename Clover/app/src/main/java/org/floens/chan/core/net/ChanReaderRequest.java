@@ -18,30 +18,76 @@
 package org.floens.chan.core.net;
 
 import android.util.JsonReader;
+import android.util.SparseArray;
 
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Response;
 import com.android.volley.Response.ErrorListener;
 import com.android.volley.Response.Listener;
 
 import org.floens.chan.ChanApplication;
 import org.floens.chan.chan.ChanUrls;
+import org.floens.chan.core.loader.ReplyGraph;
+import org.floens.chan.core.loader.ThreadSnapshotStore;
 import org.floens.chan.core.model.Loadable;
 import org.floens.chan.core.model.Post;
+import org.floens.chan.utils.Logger;
+import org.floens.chan.utils.Time;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class ChanReaderRequest extends JsonReaderRequest<List<Post>> {
+    private static final String TAG = "ChanReaderRequest";
+
+    // Lists smaller than this are finished on the reader thread, the pool overhead is not worth it
+    private static final int PARALLEL_FINISH_THRESHOLD = 64;
+    private static final int FINISH_THREAD_COUNT = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final ExecutorService finishExecutor = Executors.newFixedThreadPool(FINISH_THREAD_COUNT);
+
     private Loadable loadable;
     private List<Post> cached;
+    private SparseArray<Post> cachedById;
+    private String ifModifiedSince;
+    private String lastModified;
+    private List<Post> postsReplyingToDeleted = new ArrayList<>();
+    private byte[] snapshot;
+    private Priority priority = Priority.HIGH;
+    // Held while the cached posts are changed, cancel waits for it
+    private final Object postsLock = new Object();
+    // Posts read from the json that still need to be finished
+    private List<Post> unfinished = new ArrayList<>();
 
     private ChanReaderRequest(String url, Listener<List<Post>> listener, ErrorListener errorListener) {
         super(url, listener, errorListener);
+        // Streamed responses have no body to cache, and a 304 for an old cache entry would deliver the cached posts
+        setShouldCache(false);
     }
 
     public static ChanReaderRequest newInstance(Loadable loadable, List<Post> cached, Listener<List<Post>> listener, ErrorListener errorListener) {
+        return newInstance(loadable, cached, null, listener, errorListener);
+    }
+
+    /**
+     * Create a request that is conditional on the Last-Modified of the previous load.
+     * If the server responds with 304 Not Modified the cached list is delivered as-is, without parsing.
+     *
+     * @param ifModifiedSince the Last-Modified header of the previous response, or null to always load.
+     *                        Ignored when there are no cached posts.
+     */
+    public static ChanReaderRequest newInstance(Loadable loadable, List<Post> cached, String ifModifiedSince, Listener<List<Post>> listener, ErrorListener errorListener) {
         String url;
 
         if (loadable.isBoardMode()) {
@@ -59,18 +105,111 @@ public class ChanReaderRequest extends JsonReaderRequest<List<Post>> {
         // Copy the loadable and cached list. The cached array may changed/cleared by other threads.
         request.loadable = loadable.copy();
         request.cached = new ArrayList<>(cached);
+        request.cachedById = new SparseArray<>(cached.size());
+        for (Post post : request.cached) {
+            request.cachedById.append(post.no, post);
+        }
+
+        if (request.cached.size() > 0) {
+            request.ifModifiedSince = ifModifiedSince;
+        }
 
         return request;
     }
 
+    /**
+     * Set the priority, must be called before the request is added to the queue. Defaults to HIGH.
+     */
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Cancel the request. When this returns the request does not change the cached posts anymore, which the loader
+     * may keep after cancelling.
+     */
+    @Override
+    public void cancel() {
+        synchronized (postsLock) {
+            super.cancel();
+        }
+    }
+
     @Override
     public Priority getPriority() {
-        return Priority.HIGH;
+        return priority;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        if (ifModifiedSince != null) {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("If-Modified-Since", ifModifiedSince);
+            return headers;
+        } else {
+            return super.getHeaders();
+        }
+    }
+
+    /**
+     * @return the Last-Modified header of the response, or the one of the previous load if the response was a 304.
+     * Only valid after a response was delivered.
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the posts of a thread response serialized for the {@link ThreadSnapshotStore}, or null.
+     * Only valid after a response was delivered.
+     */
+    public byte[] getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return the posts that were finished again because a post they quote is deleted.
+     * Only valid after a response was delivered.
+     */
+    public List<Post> getPostsReplyingToDeleted() {
+        return postsReplyingToDeleted;
+    }
+
+    @Override
+    public void parseNetworkStream(NetworkResponse response, InputStream stream) throws IOException {
+        lastModified = response.headers.get("Last-Modified");
+        super.parseNetworkStream(response, stream);
+    }
+
+    @Override
+    protected Response<List<Post>> parseNetworkResponse(NetworkResponse response) {
+        if (response.notModified) {
+            if (ifModifiedSince == null) {
+                // Not asked for by this request, there are no cached posts to deliver
+                return Response.error(new ParseError(response));
+            }
+            // Nothing changed since the last load, the cached posts are still up to date
+            lastModified = ifModifiedSince;
+            return Response.success(cached, null);
+        }
+
+        if (lastModified == null && response.headers != null) {
+            lastModified = response.headers.get("Last-Modified");
+        }
+
+        return super.parseNetworkResponse(response);
+    }
+
+    @Override
+    public boolean isStreamingResponse() {
+        // Parse the posts while the json is downloading
+        return true;
     }
 
     @Override
     public List<Post> readJson(JsonReader reader) throws Exception {
         List<Post> list;
+        unfinished.clear();
 
         if (loadable.isBoardMode()) {
             list = loadBoard(reader);
@@ -82,105 +221,96 @@ public class ChanReaderRequest extends JsonReaderRequest<List<Post>> {
             throw new IllegalArgumentException("Unknown mode");
         }
 
-        return processPosts(list);
+        finishPosts(unfinished);
+
+        List<Post> posts = processPosts(list);
+        if (loadable.isThreadMode()) {
+            snapshot = serializeSnapshot(posts);
+        }
+        return posts;
     }
 
-    private List<Post> processPosts(List<Post> serverList) throws Exception {
-        List<Post> totalList = new ArrayList<>(serverList.size());
-
-        if (cached.size() > 0) {
-            totalList.addAll(cached);
-
-            // If there's a cached post but it's not in the list received from the server, mark it as deleted
-            if (loadable.isThreadMode()) {
-                boolean serverHas;
-                for (Post cache : cached) {
-                    serverHas = false;
-                    for (Post b : serverList) {
-                        if (b.no == cache.no) {
-                            serverHas = true;
-                            break;
-                        }
-                    }
+    /**
+     * Serialize the posts on the network thread, which still owns them, so the ui thread does not have to.
+     */
+    private byte[] serializeSnapshot(List<Post> posts) {
+        long start = Time.get();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(posts.size() * 256);
+            ThreadSnapshotStore.writePosts(new DataOutputStream(bytes), posts);
+            Logger.d(TAG, "Serialized snapshot of " + posts.size() + " posts, took " + Time.get(start) + "ms");
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            Logger.e(TAG, "Error serializing snapshot", e);
+            return null;
+        }
+    }
 
-                    cache.deleted = !serverHas;
-                }
+    private List<Post> processPosts(List<Post> serverList) throws Exception {
+        // The cached posts are shared with the loader, they are not changed anymore once the request was cancelled
+        synchronized (postsLock) {
+            if (isCanceled()) {
+                throw new IOException("Request cancelled");
             }
 
-            // If there's a post in the list from the server, that's not in the cached list, add it.
-            boolean known;
-            for (Post post : serverList) {
-                known = false;
+            List<Post> totalList = new ArrayList<>(serverList.size());
 
-                for (Post cache : cached) {
-                    if (cache.no == post.no) {
-                        known = true;
-                        break;
-                    }
-                }
+            if (cached.size() > 0) {
+                totalList.addAll(cached);
 
-                // serverPost is not in finalList
-                if (!known) {
-                    totalList.add(post);
+                SparseArray<Post> serverById = new SparseArray<>(serverList.size());
+                for (Post post : serverList) {
+                    serverById.append(post.no, post);
                 }
-            }
 
-            // Replace OPs
-            if (totalList.get(0).isOP && serverList.size() > 0 && serverList.get(0).isOP) {
-                totalList.set(0, serverList.get(0));
-            }
+                // If there's a cached post but it's not in the list received from the server, mark it as deleted
+                if (loadable.isThreadMode()) {
+                    for (Post cache : cached) {
+                        cache.deleted = serverById.get(cache.no) == null;
+                    }
+                }
 
-            // Sort if it got out of order due to posts disappearing/reappearing
-            /*if (loadable.isThreadMode()) {
-                Collections.sort(totalList, new Comparator<Post>() {
-                    @Override
-                    public int compare(Post lhs, Post rhs) {
-                        return lhs.time == rhs.time ? 0 : (lhs.time < rhs.time ? -1 : 1);
+                // If there's a post in the list from the server, that's not in the cached list, add it.
+                for (Post post : serverList) {
+                    if (cachedById.get(post.no) == null) {
+                        totalList.add(post);
                     }
-                });
-            }*/
+                }
 
-        } else {
-            totalList.addAll(serverList);
-        }
+                // Replace OPs
+                if (totalList.get(0).isOP && serverList.size() > 0 && serverList.get(0).isOP) {
+                    totalList.set(0, serverList.get(0));
+                }
 
-        Set<Integer> postsReplyingToDeleted = new HashSet<>();
-        for (Post post : totalList) {
-            if (!post.deleted) {
-                post.repliesFrom.clear();
+                // Sort if it got out of order due to posts disappearing/reappearing
+                /*if (loadable.isThreadMode()) {
+                    Collections.sort(totalList, new Comparator<Post>() {
+                        @Override
+                        public int compare(Post lhs, Post rhs) {
+                            return lhs.time == rhs.time ? 0 : (lhs.time < rhs.time ? -1 : 1);
+                        }
+                    });
+                }*/
 
-                for (Post other : totalList) {
-                    if (other.repliesTo.contains(post.no) && !other.deleted) {
-                        post.repliesFrom.add(other.no);
-                    }
-                }
             } else {
-                post.repliesTo.clear();
+                totalList.addAll(serverList);
+            }
 
-                for (int no : post.repliesFrom) {
-                    postsReplyingToDeleted.add(no);
-                }
+            ReplyGraph replyGraph = new ReplyGraph(totalList);
+            postsReplyingToDeleted = replyGraph.build();
 
-                post.repliesFrom.clear();
+            for (Post post : postsReplyingToDeleted) {
+                if (!post.finish()) {
+                    throw new IOException("Incorrect data about post received.");
+                }
             }
-        }
 
-        for (int no : postsReplyingToDeleted) {
             for (Post post : totalList) {
-                if (post.no == no) {
-                    if (!post.finish()) {
-                        throw new IOException("Incorrect data about post received.");
-                    }
-                    break;
-                }
+                post.isSavedReply = ChanApplication.getDatabaseManager().isSavedReply(post.board, post.no);
             }
-        }
 
-        for (Post post : totalList) {
-            post.isSavedReply = ChanApplication.getDatabaseManager().isSavedReply(post.board, post.no);
+            return totalList;
         }
-
-        return totalList;
     }
 
     private List<Post> loadThread(JsonReader reader) throws Exception {
@@ -376,22 +506,58 @@ public class ChanReaderRequest extends JsonReaderRequest<List<Post>> {
         Post cachedResult = null;
         // Do not cache OPs to make sure the archived, replies etc. are updated
         if (post.resto != 0) {
-            for (Post possibleCached : cached) {
-                if (possibleCached.no == post.no) {
-                    cachedResult = possibleCached;
-                    break;
-                }
-            }
+            cachedResult = cachedById.get(post.no);
         }
 
         if (cachedResult != null) {
             return cachedResult;
         } else {
-            if (!post.finish()) {
-                throw new IOException("Incorrect data about post received.");
+            unfinished.add(post);
+            return post;
+        }
+    }
+
+    /**
+     * Finish the posts read from the json. Big lists are split over the finish executor, the posts keep their
+     * position in the list because they are finished in place.
+     */
+    private void finishPosts(List<Post> posts) throws Exception {
+        if (posts.size() < PARALLEL_FINISH_THRESHOLD) {
+            for (Post post : posts) {
+                if (!post.finish()) {
+                    throw new IOException("Incorrect data about post received.");
+                }
             }
+            return;
+        }
 
-            return post;
+        int chunkSize = (posts.size() + FINISH_THREAD_COUNT - 1) / FINISH_THREAD_COUNT;
+        List<Future<Boolean>> futures = new ArrayList<>(FINISH_THREAD_COUNT);
+        for (int i = 0; i < posts.size(); i += chunkSize) {
+            final List<Post> chunk = posts.subList(i, Math.min(posts.size(), i + chunkSize));
+            futures.add(finishExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    for (Post post : chunk) {
+                        if (!post.finish()) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+
+        boolean valid = true;
+        for (Future<Boolean> future : futures) {
+            // Wait for all chunks, even when one failed, the posts are not shared with anything else yet
+            if (!future.get()) {
+                valid = false;
+            }
+        }
+
+        if (!valid) {
+            throw new IOException("Incorrect data about post received.");
         }
     }
 }
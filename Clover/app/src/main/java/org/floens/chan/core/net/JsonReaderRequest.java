@@ -19,7 +19,9 @@ package org.floens.chan.core.net;
 
 import android.util.JsonReader;
 
+import com.android.volley.Cache;
 import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
 import com.android.volley.Request;
 import com.android.volley.Response;
 import com.android.volley.Response.ErrorListener;
@@ -28,13 +30,19 @@ import com.android.volley.VolleyError;
 import com.android.volley.toolbox.HttpHeaderParser;
 
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 
 public abstract class JsonReaderRequest<T> extends Request<T> {
     protected final Listener<T> listener;
 
+    private boolean streamParsed = false;
+    private T streamedRead;
+    private Exception streamedException;
+
     public JsonReaderRequest(String url, Listener<T> listener, ErrorListener errorListener) {
         super(Method.GET, url, errorListener);
 
@@ -46,8 +54,41 @@ public abstract class JsonReaderRequest<T> extends Request<T> {
         listener.onResponse(response);
     }
 
+    @Override
+    public void parseNetworkStream(NetworkResponse response, InputStream stream) throws IOException {
+        streamParsed = true;
+        streamedRead = null;
+        streamedException = null;
+
+        ConnectionInputStream connection = new ConnectionInputStream(stream);
+        JsonReader reader = new JsonReader(new InputStreamReader(connection, "UTF-8"));
+        try {
+            streamedRead = readJson(reader);
+        } catch (IOException e) {
+            if (e == connection.failure) {
+                // The connection failed, let the network handle it
+                throw e;
+            }
+            // Malformed json or invalid data
+            streamedException = e;
+        } catch (Exception e) {
+            streamedException = e;
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     @Override
     protected Response<T> parseNetworkResponse(NetworkResponse response) {
+        if (streamParsed) {
+            // Streamed responses have no body to put in the cache
+            return createResponse(streamedRead, streamedException, null);
+        }
+
         ByteArrayInputStream baos = new ByteArrayInputStream(response.data);
 
         JsonReader reader = null;
@@ -73,24 +114,72 @@ public abstract class JsonReaderRequest<T> extends Request<T> {
             }
         }
 
+        return createResponse(read, exception, HttpHeaderParser.parseCacheHeaders(response));
+    }
+
+    private Response<T> createResponse(T read, Exception exception, Cache.Entry cacheEntry) {
         if (read == null) {
             if (exception != null) {
-                return Response.error(new VolleyError(exception));
+                return Response.error(new ParseError(exception));
             } else {
                 return Response.error(new VolleyError("Unknown error"));
             }
         } else {
-            return Response.success(read, HttpHeaderParser.parseCacheHeaders(response));
+            return Response.success(read, cacheEntry);
         }
     }
 
     /**
      * Read your json. Returning null or throwing something means a Response.error, Response.success is returned otherwise.
      * The reader is closed for you.
+     * For requests that return true from {@link #isStreamingResponse()} this reads from the connection while it is
+     * downloading. Only IOExceptions thrown by the connection are handled as network errors, anything else thrown
+     * is a ParseError.
      *
      * @param reader A json reader to use
      * @return null or the data
      * @throws Exception none or an exception
      */
     public abstract T readJson(JsonReader reader) throws Exception;
+
+    /**
+     * Remembers the last IOException thrown by the connection, to tell it apart from the ones thrown while parsing.
+     */
+    private static class ConnectionInputStream extends FilterInputStream {
+        private IOException failure;
+
+        public ConnectionInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            try {
+                return super.read(buffer, offset, count);
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            try {
+                return super.skip(byteCount);
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+    }
 }
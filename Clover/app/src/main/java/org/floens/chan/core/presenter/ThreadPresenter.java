@@ -27,6 +27,7 @@ import org.floens.chan.R;
 import org.floens.chan.chan.ChanUrls;
 import org.floens.chan.core.loader.ChanLoader;
 import org.floens.chan.core.loader.LoaderPool;
+import org.floens.chan.core.manager.ArchiveManager;
 import org.floens.chan.core.manager.WatchManager;
 import org.floens.chan.core.model.ChanThread;
 import org.floens.chan.core.model.Loadable;
@@ -35,6 +36,7 @@ import org.floens.chan.core.model.Post;
 import org.floens.chan.core.model.PostImage;
 import org.floens.chan.core.model.PostLinkable;
 import org.floens.chan.core.model.SavedReply;
+import org.floens.chan.core.model.ThreadDiff;
 import org.floens.chan.core.settings.ChanSettings;
 import org.floens.chan.ui.adapter.PostAdapter;
 import org.floens.chan.ui.cell.ThreadStatusCell;
@@ -110,6 +112,19 @@ public class ThreadPresenter implements ChanLoader.ChanLoaderCallback, PostAdapt
         return isPinned();
     }
 
+    /**
+     * Archive the loaded thread with its media.
+     *
+     * @return false if there is no thread loaded or it is already being archived
+     */
+    public boolean archive(ArchiveManager.ArchiveCallback callback) {
+        if (chanLoader.getThread() != null && loadable.isThreadMode()) {
+            return ChanApplication.getArchiveManager().archive(loadable, chanLoader.getThread().posts, callback);
+        } else {
+            return false;
+        }
+    }
+
     public boolean isPinned() {
         return ChanApplication.getWatchManager().findPinByLoadable(loadable) != null;
     }
@@ -138,9 +153,9 @@ public class ThreadPresenter implements ChanLoader.ChanLoaderCallback, PostAdapt
      * ChanLoader callbacks
      */
     @Override
-    public void onChanLoaderData(ChanThread result) {
+    public void onChanLoaderData(ChanThread result, ThreadDiff diff) {
         chanLoader.setAutoLoadMore(isWatching());
-        threadPresenterCallback.showPosts(result);
+        threadPresenterCallback.showPosts(result, diff);
     }
 
     @Override
@@ -264,6 +279,8 @@ public class ThreadPresenter implements ChanLoader.ChanLoaderCallback, PostAdapt
     }
 
     public void onPostOptionClicked(Post post, int id) {
+        post.ensureParsed();
+
         switch (id) {
             case 10: // Quick reply
 //                openReply(false); TODO
@@ -325,7 +342,8 @@ public class ThreadPresenter implements ChanLoader.ChanLoaderCallback, PostAdapt
     public void onShowPostReplies(Post post) {
 
         List<Post> posts = new ArrayList<>();
-        for (int no : post.repliesFrom) {
+        // A copy, a running load may rebuild the list
+        for (int no : post.getRepliesFrom().toArray()) {
             Post replyPost = findPostById(no);
             if (replyPost != null) {
                 posts.add(replyPost);
@@ -409,6 +427,7 @@ public class ThreadPresenter implements ChanLoader.ChanLoaderCallback, PostAdapt
 
         boolean add;
         for (Post item : all) {
+            item.ensureParsed();
             add = false;
             if (item.comment.toString().toLowerCase(Locale.ENGLISH).contains(query)) {
                 add = true;
@@ -428,7 +447,7 @@ public class ThreadPresenter implements ChanLoader.ChanLoaderCallback, PostAdapt
     }
 
     public interface ThreadPresenterCallback {
-        void showPosts(ChanThread thread);
+        void showPosts(ChanThread thread, ThreadDiff diff);
 
         void showError(VolleyError error);
 
@@ -17,6 +17,8 @@
  */
 package org.floens.chan.core.watch;
 
+import android.util.SparseBooleanArray;
+
 import com.android.volley.VolleyError;
 
 import org.floens.chan.ChanApplication;
@@ -25,10 +27,12 @@ import org.floens.chan.core.loader.LoaderPool;
 import org.floens.chan.core.model.ChanThread;
 import org.floens.chan.core.model.Pin;
 import org.floens.chan.core.model.Post;
+import org.floens.chan.core.model.ThreadDiff;
 import org.floens.chan.utils.AndroidUtils;
 import org.floens.chan.utils.Logger;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class PinWatcher implements ChanLoader.ChanLoaderCallback {
@@ -37,8 +41,14 @@ public class PinWatcher implements ChanLoader.ChanLoaderCallback {
     private final Pin pin;
     private ChanLoader chanLoader;
 
-    private final List<Post> posts = new ArrayList<>();
+    // The posts list of the loader, only appended to between loads
+    private List<Post> posts = Collections.emptyList();
+    // Size of the posts list after the last load that was processed
+    private int processedCount = 0;
+    // Posts quoting a saved reply, in thread order
     private final List<Post> quotes = new ArrayList<>();
+    // Numbers of the saved replies in this thread
+    private final SparseBooleanArray savedNos = new SparseBooleanArray();
     private boolean wereNewQuotes = false;
     private boolean wereNewPosts = false;
 
@@ -76,6 +86,9 @@ public class PinWatcher implements ChanLoader.ChanLoaderCallback {
         wereNewQuotes = false;
     }
 
+    /**
+     * @return a view of the tail of the posts that were not viewed yet, copy it to keep it past the next load.
+     */
     public List<Post> getUnviewedPosts() {
         if (posts.size() == 0) {
             return posts;
@@ -84,6 +97,9 @@ public class PinWatcher implements ChanLoader.ChanLoaderCallback {
         }
     }
 
+    /**
+     * @return a view of the tail of the quotes that were not viewed yet, copy it to keep it past the next load.
+     */
     public List<Post> getUnviewedQuotes() {
         return quotes.subList(Math.max(0, quotes.size() - pin.getNewQuoteCount()), quotes.size());
     }
@@ -117,7 +133,8 @@ public class PinWatcher implements ChanLoader.ChanLoaderCallback {
     @Override
     public void onChanLoaderError(VolleyError error) {
         Logger.e(TAG, "PinWatcher onError");
-        pin.isError = true;
+        // Other errors are retried with a backoff by the loader
+        pin.isError = ChanLoader.isThreadGone(error);
 
         AndroidUtils.runOnUiThread(new Runnable() {
             @Override
@@ -128,38 +145,44 @@ public class PinWatcher implements ChanLoader.ChanLoaderCallback {
     }
 
     @Override
-    public void onChanLoaderData(ChanThread thread) {
+    public void onChanLoaderData(ChanThread thread, ThreadDiff diff) {
         pin.isError = false;
 
         if (pin.thumbnailUrl == null && thread.op != null && thread.op.hasImage) {
             pin.thumbnailUrl = thread.op.thumbnailUrl;
         }
 
-        // Populate posts list
-        posts.clear();
-        posts.addAll(thread.posts);
-
-        // Populate quotes list
-        quotes.clear();
-
-        // Get list of saved replies from this thread
-        List<Post> savedReplies = new ArrayList<>();
-        for (Post item : thread.posts) {
-//            saved.title = pin.loadable.title;
+        posts = thread.posts;
 
-            if (item.isSavedReply) {
-                savedReplies.add(item);
+        // Only the new posts are checked for quotes, unless the whole thread changed or loads were missed
+        List<Post> newPosts;
+        if (diff.full || processedCount + diff.added.size() != thread.posts.size()) {
+            quotes.clear();
+            savedNos.clear();
+            newPosts = thread.posts;
+        } else {
+            for (int i = 0; i < diff.deleted.size(); i++) {
+                quotes.remove(diff.deleted.get(i));
             }
+            newPosts = diff.added;
         }
 
-        // Now get a list of posts that have a quote to a saved reply
-        for (Post post : thread.posts) {
-            for (Post saved : savedReplies) {
-                if (post.repliesTo.contains(saved.no)) {
-                    quotes.add(post);
+        for (int i = 0; i < newPosts.size(); i++) {
+            Post post = newPosts.get(i);
+            if (post.isSavedReply) {
+                savedNos.put(post.no, true);
+            }
+
+            if (savedNos.size() > 0) {
+                for (int j = 0; j < post.getRepliesTo().size(); j++) {
+                    if (savedNos.get(post.getRepliesTo().get(j))) {
+                        quotes.add(post);
+                        break;
+                    }
                 }
             }
         }
+        processedCount = thread.posts.size();
 
         boolean isFirstLoad = pin.watchNewCount < 0 || pin.quoteNewCount < 0;
 
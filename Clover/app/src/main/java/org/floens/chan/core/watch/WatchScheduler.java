@@ -0,0 +1,137 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.floens.chan.core.watch;
+
+import org.floens.chan.core.manager.WatchManager;
+import org.floens.chan.core.model.Pin;
+import org.floens.chan.utils.AndroidUtils;
+import org.floens.chan.utils.Logger;
+import org.floens.chan.utils.Time;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * Starts the loads of the watched pins that are due, with a limit on how many load at the same time and a minimum
+ * time between the start of two loads. The pins that are overdue the longest load first.
+ * Only to be used on the ui thread.
+ */
+public class WatchScheduler {
+    private static final String TAG = "WatchScheduler";
+
+    // Maximum amount of watch loads running at the same time
+    private static final int MAX_RUNNING = 2;
+    // Minimum time between the start of two watch loads, in ms
+    private static final long START_INTERVAL = 750;
+
+    private final List<Pin> queue = new ArrayList<>();
+    private final List<Pin> running = new ArrayList<>();
+    private long lastStart;
+    private boolean dispatchPosted = false;
+
+    private final Runnable dispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            dispatchPosted = false;
+            dispatch();
+        }
+    };
+
+    /**
+     * Queue the pins that are due for a load and start as many as allowed.
+     *
+     * @param pins the watching pins
+     */
+    public void enqueue(List<Pin> pins) {
+        boolean added = false;
+        for (Pin pin : pins) {
+            PinWatcher watcher = pin.getPinWatcher();
+            if (watcher != null && !pin.isError && !watcher.isLoading() && watcher.getTimeUntilNextLoad() < 0L &&
+                    !queue.contains(pin) && !running.contains(pin)) {
+                queue.add(pin);
+                added = true;
+            }
+        }
+
+        if (added) {
+            Collections.sort(queue, new Comparator<Pin>() {
+                @Override
+                public int compare(Pin lhs, Pin rhs) {
+                    long lhsTime = lhs.getPinWatcher() == null ? 0L : lhs.getPinWatcher().getTimeUntilNextLoad();
+                    long rhsTime = rhs.getPinWatcher() == null ? 0L : rhs.getPinWatcher().getTimeUntilNextLoad();
+                    return lhsTime < rhsTime ? -1 : (lhsTime == rhsTime ? 0 : 1);
+                }
+            });
+        }
+
+        dispatch();
+    }
+
+    /**
+     * @return true if the pin is waiting for its turn to load
+     */
+    public boolean isQueued(Pin pin) {
+        return queue.contains(pin);
+    }
+
+    public void remove(Pin pin) {
+        queue.remove(pin);
+        running.remove(pin);
+    }
+
+    /**
+     * Start the next queued loads if there is room. Called again when a load finishes.
+     */
+    public void dispatch() {
+        // Free the slots of the loads that finished
+        for (int i = running.size() - 1; i >= 0; i--) {
+            PinWatcher watcher = running.get(i).getPinWatcher();
+            if (watcher == null || !watcher.isLoading()) {
+                running.remove(i);
+            }
+        }
+
+        while (!queue.isEmpty() && running.size() < MAX_RUNNING) {
+            long wait = lastStart + START_INTERVAL - Time.get();
+            if (wait > 0L) {
+                if (!dispatchPosted) {
+                    dispatchPosted = true;
+                    AndroidUtils.runOnUiThread(dispatchRunnable, wait);
+                }
+                return;
+            }
+
+            Pin pin = queue.remove(0);
+            if (pin.update()) {
+                lastStart = Time.get();
+                if (pin.getPinWatcher().isLoading()) {
+                    running.add(pin);
+                }
+                EventBus.getDefault().post(new WatchManager.PinChangedMessage(pin));
+            }
+        }
+
+        if (Logger.debugEnabled() && (!queue.isEmpty() || !running.isEmpty())) {
+            Logger.d(TAG, running.size() + " watch loads running, " + queue.size() + " queued");
+        }
+    }
+}
@@ -18,17 +18,28 @@
 package org.floens.chan.database;
 
 import android.content.Context;
+import android.util.SparseArray;
 
 import org.floens.chan.core.model.Board;
+import org.floens.chan.core.model.Loadable;
 import org.floens.chan.core.model.Pin;
 import org.floens.chan.core.model.SavedReply;
 import org.floens.chan.utils.Logger;
 import org.floens.chan.utils.Time;
 
 import java.sql.SQLException;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class DatabaseManager {
     private static final String TAG = "DatabaseManager";
@@ -36,40 +47,72 @@ public class DatabaseManager {
     private static final long SAVED_REPLY_TRIM_TRIGGER = 250;
     private static final long SAVED_REPLY_TRIM_COUNT = 50;
 
+    // Time to wait before writing the queued changes, more changes to the same rows are coalesced in this window
+    private static final long WRITE_DELAY = 1000;
+
     private final DatabaseHelper helper;
-    private List<SavedReply> savedReplies;
-    private HashSet<Integer> savedRepliesIds = new HashSet<>();
+
+    // Saved replies indexed by board and then post number, guarded by savedRepliesLock.
+    // Lookups come from the ui thread and from the threads that parse posts.
+    private final Object savedRepliesLock = new Object();
+    private final Map<String, SparseArray<SavedReply>> savedRepliesByBoard = new HashMap<>();
+    private boolean savedRepliesLoaded = false;
+    private long savedRepliesCount;
+
+    // Changes that are not yet written, guarded by pendingLock.
+    // All writes of these happen on the writeExecutor thread in a single transaction.
+    private final ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final Object pendingLock = new Object();
+    private final Set<Pin> pendingPins = new LinkedHashSet<>();
+    // Value is true when the board needs to be created if it does not exist
+    private final Map<Board, Boolean> pendingBoards = new LinkedHashMap<>();
+    private final List<SavedReply> pendingReplies = new ArrayList<>();
+    private ScheduledFuture<?> pendingWrite;
+
+    private long pinnedLoadTime = -1;
+    private int pinnedLoadCount;
+
+    private final Runnable writeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
 
     public DatabaseManager(Context context) {
         helper = new DatabaseHelper(context);
     }
 
+    /**
+     * Save the reply. It is available from {@link #getSavedReply(String, int)} immediately, the row is
+     * written in the background.
+     */
     public void saveReply(SavedReply saved) {
         Logger.i(TAG, "Saving " + saved.board + ", " + saved.no);
 
-        try {
-            helper.savedDao.create(saved);
-        } catch (SQLException e) {
-            Logger.e(TAG, "Error saving reply", e);
+        synchronized (savedRepliesLock) {
+            if (!savedRepliesLoaded) {
+                loadSavedReplies();
+            }
+            addToIndex(saved);
+            savedRepliesCount++;
         }
 
-        loadSavedReplies();
+        synchronized (pendingLock) {
+            pendingReplies.add(saved);
+            scheduleWrite(WRITE_DELAY);
+        }
     }
 
     public SavedReply getSavedReply(String board, int no) {
-        if (savedReplies == null) {
-            loadSavedReplies();
-        }
-
-        if (savedRepliesIds.contains(no)) {
-            for (SavedReply r : savedReplies) {
-                if (r.no == no && r.board.equals(board)) {
-                    return r;
-                }
+        synchronized (savedRepliesLock) {
+            if (!savedRepliesLoaded) {
+                loadSavedReplies();
             }
-        }
 
-        return null;
+            SparseArray<SavedReply> boardReplies = savedRepliesByBoard.get(board);
+            return boardReplies == null ? null : boardReplies.get(no);
+        }
     }
 
     public boolean isSavedReply(String board, int no) {
@@ -77,30 +120,61 @@ public class DatabaseManager {
     }
 
     private void loadSavedReplies() {
+        savedRepliesByBoard.clear();
+        savedRepliesLoaded = true;
         try {
-            savedReplies = helper.savedDao.queryForAll();
-            savedRepliesIds.clear();
+            List<SavedReply> savedReplies = helper.savedDao.queryForAll();
             for (SavedReply reply : savedReplies) {
-                savedRepliesIds.add(reply.no);
+                addToIndex(reply);
             }
 
-            long count = helper.savedDao.countOf();
-            if (count >= SAVED_REPLY_TRIM_TRIGGER) {
-                trimSavedRepliesTable(SAVED_REPLY_TRIM_COUNT + (count - SAVED_REPLY_TRIM_TRIGGER));
-            }
+            savedRepliesCount = savedReplies.size();
+            trimSavedRepliesIfNeeded();
         } catch (SQLException e) {
             Logger.e(TAG, "Error loading saved replies", e);
         }
     }
 
+    private void addToIndex(SavedReply reply) {
+        SparseArray<SavedReply> boardReplies = savedRepliesByBoard.get(reply.board);
+        if (boardReplies == null) {
+            boardReplies = new SparseArray<>();
+            savedRepliesByBoard.put(reply.board, boardReplies);
+        }
+        boardReplies.put(reply.no, reply);
+    }
+
+    private void removeFromIndex(SavedReply reply) {
+        SparseArray<SavedReply> boardReplies = savedRepliesByBoard.get(reply.board);
+        if (boardReplies != null) {
+            boardReplies.remove(reply.no);
+        }
+    }
+
+    private void trimSavedRepliesIfNeeded() {
+        if (savedRepliesCount >= SAVED_REPLY_TRIM_TRIGGER) {
+            trimSavedRepliesTable(SAVED_REPLY_TRIM_COUNT + (savedRepliesCount - SAVED_REPLY_TRIM_TRIGGER));
+        }
+    }
+
     public void trimSavedRepliesTable(long limit) {
-        try {
-            Logger.i(TAG, "Trimming the length of the savedreply table for " + limit + " rows, was " + helper.savedDao.countOf());
-            helper.savedDao.executeRaw("DELETE FROM savedreply WHERE id IN " +
-                    "(SELECT id FROM savedreply ORDER BY id ASC LIMIT ?)", Long.toString(limit));
-            Logger.i(TAG, "The savedreply table now has " + helper.savedDao.countOf() + " rows");
-        } catch (SQLException e) {
-            Logger.e(TAG, "Error trimming saved replies table", e);
+        synchronized (savedRepliesLock) {
+            try {
+                Logger.i(TAG, "Trimming the length of the savedreply table for " + limit + " rows, was " + savedRepliesCount);
+
+                // Remove the oldest rows from the index first, so the index does not have to be reloaded
+                List<SavedReply> oldest = helper.savedDao.queryBuilder().orderBy("id", true).limit(limit).query();
+                for (SavedReply reply : oldest) {
+                    removeFromIndex(reply);
+                }
+
+                helper.savedDao.executeRaw("DELETE FROM savedreply WHERE id IN " +
+                        "(SELECT id FROM savedreply ORDER BY id ASC LIMIT ?)", Long.toString(limit));
+                savedRepliesCount = helper.savedDao.countOf();
+                Logger.i(TAG, "The savedreply table now has " + savedRepliesCount + " rows");
+            } catch (SQLException e) {
+                Logger.e(TAG, "Error trimming saved replies table", e);
+            }
         }
     }
 
@@ -114,6 +188,10 @@ public class DatabaseManager {
     }
 
     public void removePin(Pin pin) {
+        synchronized (pendingLock) {
+            pendingPins.remove(pin);
+        }
+
         try {
             helper.pinDao.delete(pin);
             helper.loadableDao.delete(pin.loadable);
@@ -122,84 +200,87 @@ public class DatabaseManager {
         }
     }
 
+    /**
+     * Queue the pin and its loadable to be written in the background.
+     */
     public void updatePin(Pin pin) {
-        try {
-            helper.pinDao.update(pin);
-            helper.loadableDao.update(pin.loadable);
-        } catch (SQLException e) {
-            Logger.e(TAG, "Error updating pin in db", e);
+        synchronized (pendingLock) {
+            pendingPins.add(pin);
+            scheduleWrite(WRITE_DELAY);
         }
     }
 
-    public void updatePins(final List<Pin> pins) {
-        try {
-            helper.pinDao.callBatchTasks(new Callable<Void>() {
-                @Override
-                public Void call() throws SQLException {
-                    for (Pin pin : pins) {
-                        helper.pinDao.update(pin);
-                    }
-
-                    for (Pin pin : pins) {
-                        helper.loadableDao.update(pin.loadable);
-                    }
-
-                    return null;
-                }
-            });
-        } catch (Exception e) {
-            Logger.e(TAG, "Error updating pins in db", e);
+    /**
+     * Queue the pins and their loadables to be written in the background.
+     */
+    public void updatePins(List<Pin> pins) {
+        synchronized (pendingLock) {
+            pendingPins.addAll(pins);
+            scheduleWrite(WRITE_DELAY);
         }
     }
 
     public List<Pin> getPinned() {
+        long start = Time.get();
         List<Pin> list = null;
         try {
             list = helper.pinDao.queryForAll();
-            for (Pin p : list) {
-                helper.loadableDao.refresh(p.loadable);
+
+            // The foreign loadables only have their id set, load them with one query instead of a refresh per pin
+            if (!list.isEmpty()) {
+                List<Integer> ids = new ArrayList<>(list.size());
+                for (Pin p : list) {
+                    ids.add(p.loadable.getId());
+                }
+
+                SparseArray<Loadable> loadables = new SparseArray<>(list.size());
+                for (Loadable loadable : helper.loadableDao.queryBuilder().where().in("id", ids).query()) {
+                    loadables.put(loadable.getId(), loadable);
+                }
+
+                for (Pin p : list) {
+                    Loadable loadable = loadables.get(p.loadable.getId());
+                    if (loadable != null) {
+                        p.loadable = loadable;
+                    } else {
+                        Logger.w(TAG, "Loadable for pin " + p.id + " not found");
+                    }
+                }
             }
         } catch (SQLException e) {
             Logger.e(TAG, "Error getting pins from db", e);
         }
 
+        pinnedLoadTime = Time.get(start);
+        pinnedLoadCount = list == null ? 0 : list.size();
+        Logger.d(TAG, "Loading " + pinnedLoadCount + " pins took " + pinnedLoadTime + "ms");
+
         return list;
     }
 
-    public void setBoards(final List<Board> boards) {
-        try {
-            helper.boardsDao.callBatchTasks(new Callable<Void>() {
-                @Override
-                public Void call() throws SQLException {
-                    for (Board b : boards) {
-                        helper.boardsDao.createOrUpdate(b);
-                    }
-
-                    return null;
-                }
-            });
-        } catch (Exception e) {
-            Logger.e(TAG, "Error setting boards in db", e);
+    /**
+     * Queue the boards to be created or updated in the background.
+     */
+    public void setBoards(List<Board> boards) {
+        synchronized (pendingLock) {
+            for (Board board : boards) {
+                pendingBoards.put(board, true);
+            }
+            scheduleWrite(WRITE_DELAY);
         }
     }
 
-    public void updateBoards(final List<Board> boards) {
-        try {
-            helper.boardsDao.callBatchTasks(new Callable<Void>() {
-                @Override
-                public Void call() throws SQLException {
-                    long start = Time.get();
-                    for (Board b : boards) {
-                        helper.boardsDao.update(b);
-                    }
-
-                    Logger.d(TAG, "Update board took " + Time.get(start));
-
-                    return null;
+    /**
+     * Queue the boards to be updated in the background.
+     */
+    public void updateBoards(List<Board> boards) {
+        synchronized (pendingLock) {
+            for (Board board : boards) {
+                if (!pendingBoards.containsKey(board)) {
+                    pendingBoards.put(board, false);
                 }
-            });
-        } catch (Exception e) {
-            Logger.e(TAG, "Error updating boards in db", e);
+            }
+            scheduleWrite(WRITE_DELAY);
         }
     }
 
@@ -226,11 +307,106 @@ public class DatabaseManager {
             e.printStackTrace();
         }
 
+        if (pinnedLoadTime >= 0) {
+            o += "Loading " + pinnedLoadCount + " pins took " + pinnedLoadTime + "ms\n";
+        }
+
         return o;
     }
 
+    /**
+     * Write the queued changes now instead of after the delay. Called when the app goes to the background.
+     */
+    public void flush() {
+        synchronized (pendingLock) {
+            scheduleWrite(0);
+        }
+    }
+
     public void reset() {
+        synchronized (pendingLock) {
+            pendingPins.clear();
+            pendingBoards.clear();
+            pendingReplies.clear();
+        }
+
         helper.reset();
-        loadSavedReplies();
+        synchronized (savedRepliesLock) {
+            loadSavedReplies();
+        }
+    }
+
+    // Must be called with pendingLock held
+    private void scheduleWrite(long delay) {
+        if (pendingWrite != null) {
+            // Already scheduled, only reschedule to write sooner
+            if (delay > 0 || !pendingWrite.cancel(false)) {
+                return;
+            }
+        }
+
+        pendingWrite = writeExecutor.schedule(writeRunnable, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void writePending() {
+        final List<Pin> pins;
+        final Map<Board, Boolean> boards;
+        final List<SavedReply> replies;
+        synchronized (pendingLock) {
+            // Changes from now on schedule a new write
+            pendingWrite = null;
+
+            pins = new ArrayList<>(pendingPins);
+            boards = new LinkedHashMap<>(pendingBoards);
+            replies = new ArrayList<>(pendingReplies);
+            pendingPins.clear();
+            pendingBoards.clear();
+            pendingReplies.clear();
+        }
+
+        if (pins.isEmpty() && boards.isEmpty() && replies.isEmpty()) {
+            return;
+        }
+
+        long start = Time.get();
+        try {
+            helper.pinDao.callBatchTasks(new Callable<Void>() {
+                @Override
+                public Void call() throws SQLException {
+                    for (SavedReply reply : replies) {
+                        helper.savedDao.create(reply);
+                    }
+
+                    for (Map.Entry<Board, Boolean> entry : boards.entrySet()) {
+                        if (entry.getValue()) {
+                            helper.boardsDao.createOrUpdate(entry.getKey());
+                        } else {
+                            helper.boardsDao.update(entry.getKey());
+                        }
+                    }
+
+                    for (Pin pin : pins) {
+                        helper.pinDao.update(pin);
+                    }
+
+                    for (Pin pin : pins) {
+                        helper.loadableDao.update(pin.loadable);
+                    }
+
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            Logger.e(TAG, "Error writing queued changes to db", e);
+        }
+
+        Logger.d(TAG, "Wrote " + pins.size() + " pins, " + boards.size() + " boards and " + replies.size() +
+                " saved replies, took " + Time.get(start) + "ms");
+
+        if (!replies.isEmpty()) {
+            synchronized (savedRepliesLock) {
+                trimSavedRepliesIfNeeded();
+            }
+        }
     }
 }
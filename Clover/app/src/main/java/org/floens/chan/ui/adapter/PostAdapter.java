@@ -18,6 +18,7 @@
 package org.floens.chan.ui.adapter;
 
 import android.support.v7.widget.RecyclerView;
+import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
 
@@ -25,15 +26,21 @@ import org.floens.chan.R;
 import org.floens.chan.core.model.ChanThread;
 import org.floens.chan.core.model.Loadable;
 import org.floens.chan.core.model.Post;
+import org.floens.chan.core.model.ThreadDiff;
 import org.floens.chan.ui.cell.ThreadStatusCell;
 import org.floens.chan.ui.view.PostView;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class PostAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     private static final int TYPE_POST = 0;
     private static final int TYPE_STATUS = 1;
+    private static final int PREFETCH_COUNT = 5;
+
+    private static final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor();
 
     private final PostAdapterCallback postAdapterCallback;
     private final PostView.PostViewCallback postViewCallback;
@@ -47,6 +54,8 @@ public class PostAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     private Post highlightedPost;
     private String highlightedPostId;
     private boolean filtering = false;
+    // Numbers of the posts shown while filtering
+    private final SparseBooleanArray filter = new SparseBooleanArray();
 
     public PostAdapter(RecyclerView recyclerView, PostAdapterCallback postAdapterCallback, PostView.PostViewCallback postViewCallback, ThreadStatusCell.Callback statusCellCallback) {
         this.recyclerView = recyclerView;
@@ -77,6 +86,7 @@ public class PostAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
             Post post = displayList.get(position);
             boolean highlight = post == highlightedPost || post.id.equals(highlightedPostId);
             postViewHolder.postView.setPost(post, postViewCallback, highlight);
+            prefetch(position);
         } else if (getItemViewType(position) == TYPE_STATUS) {
             ((StatusViewHolder) holder).threadStatusCell.update();
             onScrolledToBottom();
@@ -119,18 +129,59 @@ public class PostAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         sourceList.clear();
         sourceList.addAll(thread.posts);
 
-        if (!filtering) {
-            displayList.clear();
-            displayList.addAll(sourceList);
-        }
+        applyFilter();
 
         // Update all, recyclerview will figure out all the animations
         notifyDataSetChanged();
     }
 
+    /**
+     * Apply the changes of a reload. Falls back to {@link #setThread(ChanThread)} for full reloads.
+     */
+    public void setThread(ChanThread thread, ThreadDiff diff) {
+        if (diff.full || sourceList.size() == 0 || thread.posts.size() != sourceList.size() + diff.added.size()) {
+            setThread(thread);
+            return;
+        }
+
+        showError(null);
+
+        if (diff.hasChanges()) {
+            int previousSize = displayList.size();
+            Post op = thread.posts.get(0);
+            sourceList.set(0, op);
+            sourceList.addAll(diff.added);
+
+            if (filtering) {
+                // Added posts are not in the filter, the positions stay the same
+                applyFilter();
+            } else {
+                displayList.set(0, op);
+                displayList.addAll(diff.added);
+            }
+
+            for (int i = 0; i < previousSize; i++) {
+                Post post = displayList.get(i);
+                if ((post == op && diff.opChanged) || diff.isChanged(post)) {
+                    notifyItemChanged(i);
+                }
+            }
+
+            if (displayList.size() > previousSize) {
+                notifyItemRangeInserted(previousSize, displayList.size() - previousSize);
+            }
+        }
+
+        // The status shows the OP counts and the time until the next load
+        if (showStatusView()) {
+            notifyItemChanged(getItemCount() - 1);
+        }
+    }
+
     public void cleanup() {
         highlightedPost = null;
         filtering = false;
+        filter.clear();
         sourceList.clear();
         displayList.clear();
         lastPostCount = 0;
@@ -152,15 +203,11 @@ public class PostAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     public void filterList(List<Post> filter) {
         filtering = true;
 
-        displayList.clear();
-        for (Post item : sourceList) {
-            for (Post filterItem : filter) {
-                if (filterItem.no == item.no) {
-                    displayList.add(item);
-                    break;
-                }
-            }
+        this.filter.clear();
+        for (Post filterItem : filter) {
+            this.filter.put(filterItem.no, true);
         }
+        applyFilter();
 
         notifyDataSetChanged();
     }
@@ -168,9 +215,8 @@ public class PostAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     public void clearFilter() {
         if (filtering) {
             filtering = false;
-
-            displayList.clear();
-            displayList.addAll(sourceList);
+            filter.clear();
+            applyFilter();
 
             notifyDataSetChanged();
         }
@@ -188,6 +234,42 @@ public class PostAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         notifyDataSetChanged();
     }
 
+    /**
+     * Fill the displayList with the posts of the sourceList that pass the filter.
+     */
+    private void applyFilter() {
+        displayList.clear();
+        if (filtering) {
+            for (Post item : sourceList) {
+                if (filter.get(item.no)) {
+                    displayList.add(item);
+                }
+            }
+        } else {
+            displayList.addAll(sourceList);
+        }
+    }
+
+    /**
+     * Parse the posts after the bound position on a background thread, so they are ready when scrolled to.
+     */
+    private void prefetch(int position) {
+        int end = Math.min(displayList.size(), position + 1 + PREFETCH_COUNT);
+        if (position + 1 >= end) {
+            return;
+        }
+
+        final List<Post> toParse = new ArrayList<>(displayList.subList(position + 1, end));
+        prefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Post post : toParse) {
+                    post.ensureParsed();
+                }
+            }
+        });
+    }
+
     private void onScrolledToBottom() {
         if (!filtering && lastPostCount != sourceList.size()) {
             lastPostCount = sourceList.size();
@@ -7,15 +7,26 @@ import android.widget.LinearLayout;
 import android.widget.ScrollView;
 import android.widget.TextView;
 
+import com.android.volley.Cache;
+import com.android.volley.toolbox.DecodePool;
+import com.android.volley.toolbox.DiskBasedCache;
+
 import org.floens.chan.ChanApplication;
 import org.floens.chan.R;
 import org.floens.chan.controller.Controller;
 import org.floens.chan.core.model.SavedReply;
+import org.floens.chan.utils.AndroidUtils;
+import org.floens.chan.utils.Logger;
+import org.floens.chan.utils.Time;
 
+import java.io.File;
 import java.util.Random;
 
 public class DeveloperSettingsController extends Controller {
+    private static final String TAG = "DeveloperSettingsController";
+
     private TextView summaryText;
+    private TextView cacheBenchmarkText;
 
     public DeveloperSettingsController(Context context) {
         super(context);
@@ -87,6 +98,33 @@ public class DeveloperSettingsController extends Controller {
         trimSavedReply.setText("Trim savedreply table");
         wrapper.addView(trimSavedReply);
 
+        final Button cacheBenchmark = new Button(context);
+        cacheBenchmark.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(final View v) {
+                cacheBenchmark.setEnabled(false);
+                cacheBenchmarkText.setText("Running...");
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        final String result = benchmarkDiskCache();
+                        AndroidUtils.runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                cacheBenchmark.setEnabled(true);
+                                cacheBenchmarkText.setText(result);
+                            }
+                        });
+                    }
+                }).start();
+            }
+        });
+        cacheBenchmark.setText("Benchmark disk cache hits");
+        wrapper.addView(cacheBenchmark);
+
+        cacheBenchmarkText = new TextView(context);
+        wrapper.addView(cacheBenchmarkText);
+
         ScrollView scrollView = new ScrollView(context);
         scrollView.addView(wrapper);
         view = scrollView;
@@ -94,8 +132,75 @@ public class DeveloperSettingsController extends Controller {
 
     private void setDbSummary() {
         String dbSummary = "";
+        dbSummary += "Startup took " + ChanApplication.getInstance().getStartupTime() + "ms\n";
         dbSummary += "Database summary:\n";
         dbSummary += ChanApplication.getDatabaseManager().getSummary();
+        dbSummary += "\n" + DecodePool.getSummary() + "\n";
         summaryText.setText(dbSummary);
     }
+
+    /**
+     * Measures the hits per second of a test cache with an increasing amount of threads reading from it, like the
+     * image requests do on the DecodePool.
+     */
+    private String benchmarkDiskCache() {
+        final int entries = 200;
+        final int hitsPerThread = 2000;
+
+        File directory = new File(context.getCacheDir(), "cache_benchmark");
+        final DiskBasedCache cache = new DiskBasedCache(directory, 16 * 1024 * 1024);
+        cache.initialize();
+        byte[] data = new byte[8 * 1024];
+        for (int i = 0; i < entries; i++) {
+            Cache.Entry entry = new Cache.Entry();
+            entry.data = data;
+            entry.ttl = Long.MAX_VALUE;
+            entry.softTtl = Long.MAX_VALUE;
+            cache.put("benchmark" + i, entry);
+        }
+
+        String result = "Disk cache hits per second, " + entries + " entries of " + data.length + " bytes:\n";
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                final int offset = i * 31;
+                workers[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < hitsPerThread; j++) {
+                            cache.get("benchmark" + ((offset + j) % entries));
+                        }
+                    }
+                });
+            }
+
+            long start = Time.get();
+            for (Thread worker : workers) {
+                worker.start();
+            }
+            try {
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            long time = Math.max(1, Time.get(start));
+            result += threads + " threads: " + (threads * hitsPerThread * 1000L / time) + "\n";
+        }
+
+        cache.clear();
+        cache.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        if (!directory.delete()) {
+            Logger.w(TAG, "Could not delete the benchmark cache");
+        }
+
+        return result;
+    }
 }
@@ -20,10 +20,12 @@ package org.floens.chan.ui.controller;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.widget.Toast;
 
 import org.floens.chan.ChanApplication;
 import org.floens.chan.R;
 import org.floens.chan.chan.ChanUrls;
+import org.floens.chan.core.manager.ArchiveManager;
 import org.floens.chan.core.manager.WatchManager;
 import org.floens.chan.core.model.Loadable;
 import org.floens.chan.core.model.Pin;
@@ -41,6 +43,7 @@ public class ViewThreadController extends ThreadController implements ThreadLayo
     private static final int REFRESH_ID = 101;
     private static final int SEARCH_ID = 102;
     private static final int SHARE_ID = 103;
+    private static final int ARCHIVE_ID = 104;
 
     private ToolbarMenuItem pinItem;
     private Loadable loadable;
@@ -67,7 +70,8 @@ public class ViewThreadController extends ThreadController implements ThreadLayo
         navigationItem.createOverflow(context, this, Arrays.asList(
                 new FloatingMenuItem(REFRESH_ID, context.getString(R.string.action_reload)),
                 new FloatingMenuItem(SEARCH_ID, context.getString(R.string.action_search)),
-                new FloatingMenuItem(SHARE_ID, context.getString(R.string.action_share))
+                new FloatingMenuItem(SHARE_ID, context.getString(R.string.action_share)),
+                new FloatingMenuItem(ARCHIVE_ID, context.getString(R.string.action_archive))
         ));
 
         loadLoadable(loadable);
@@ -173,6 +177,25 @@ public class ViewThreadController extends ThreadController implements ThreadLayo
                 String link = ChanUrls.getThreadUrlDesktop(loadable.board, loadable.no);
                 AndroidUtils.shareLink(link);
                 break;
+            case ARCHIVE_ID:
+                boolean started = threadLayout.getPresenter().archive(new ArchiveManager.ArchiveCallback() {
+                    @Override
+                    public void onArchiveDone(boolean success, int failed) {
+                        String message;
+                        if (!success) {
+                            message = context.getString(R.string.thread_archive_failed);
+                        } else if (failed > 0) {
+                            message = context.getString(R.string.thread_archive_done_failed_files, failed);
+                        } else {
+                            message = context.getString(R.string.thread_archive_done);
+                        }
+                        Toast.makeText(context, message, Toast.LENGTH_SHORT).show();
+                    }
+                });
+                if (started) {
+                    Toast.makeText(context, R.string.thread_archive_started, Toast.LENGTH_SHORT).show();
+                }
+                break;
         }
     }
 
@@ -42,6 +42,7 @@ import org.floens.chan.core.model.Loadable;
 import org.floens.chan.core.model.Post;
 import org.floens.chan.core.model.PostImage;
 import org.floens.chan.core.model.PostLinkable;
+import org.floens.chan.core.model.ThreadDiff;
 import org.floens.chan.core.presenter.ThreadPresenter;
 import org.floens.chan.core.settings.ChanSettings;
 import org.floens.chan.ui.helper.PostPopupHelper;
@@ -123,8 +124,8 @@ public class ThreadLayout extends LoadView implements ThreadPresenter.ThreadPres
     }
 
     @Override
-    public void showPosts(ChanThread thread) {
-        threadListLayout.showPosts(thread, visible != Visible.THREAD);
+    public void showPosts(ChanThread thread, ThreadDiff diff) {
+        threadListLayout.showPosts(thread, diff, visible != Visible.THREAD);
         switchVisible(Visible.THREAD);
         callback.onShowPosts();
     }
@@ -181,6 +182,7 @@ public class ThreadLayout extends LoadView implements ThreadPresenter.ThreadPres
 
     public void clipboardPost(Post post) {
         ClipboardManager clipboard = (ClipboardManager) AndroidUtils.getAppRes().getSystemService(Context.CLIPBOARD_SERVICE);
+        post.ensureParsed();
         ClipData clip = ClipData.newPlainText("Post text", post.comment.toString());
         clipboard.setPrimaryClip(clip);
         Toast.makeText(getContext(), R.string.post_text_copied_to_clipboard, Toast.LENGTH_SHORT).show();
@@ -29,6 +29,7 @@ import org.floens.chan.R;
 import org.floens.chan.core.model.ChanThread;
 import org.floens.chan.core.model.Post;
 import org.floens.chan.core.model.PostImage;
+import org.floens.chan.core.model.ThreadDiff;
 import org.floens.chan.ui.adapter.PostAdapter;
 import org.floens.chan.ui.cell.ThreadStatusCell;
 import org.floens.chan.ui.view.PostView;
@@ -78,11 +79,11 @@ public class ThreadListLayout extends LinearLayout {
         });
     }
 
-    public void showPosts(ChanThread thread, boolean initial) {
+    public void showPosts(ChanThread thread, ThreadDiff diff, boolean initial) {
         if (initial) {
             recyclerView.scrollToPosition(0);
         }
-        postAdapter.setThread(thread);
+        postAdapter.setThread(thread, diff);
     }
 
     public void showError(String error) {
@@ -173,6 +173,8 @@ public class WatchNotifier extends Service {
             for (Post post : notificationList) {
                 CharSequence prefix = AndroidUtils.ellipsize(post.title, 18);
 
+                post.ensureParsed();
+
                 CharSequence comment;
                 if (post.comment.length() == 0) {
                     comment = "(image)";
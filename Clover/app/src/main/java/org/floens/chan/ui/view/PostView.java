@@ -131,6 +131,8 @@ public class PostView extends LinearLayout implements View.OnClickListener, Post
         this.callback = callback;
         this.loadable = callback.getLoadable();
 
+        post.ensureParsed();
+
         highlightQuotesNo = -1;
         setPostLinkableListener(this);
 
@@ -191,12 +193,12 @@ public class PostView extends LinearLayout implements View.OnClickListener, Post
             commentView.setMovementMethod(null);
         }
 
-        if (isGrid() || ((post.isOP && boardCatalogMode && post.replies > 0) || (post.repliesFrom.size() > 0))) {
+        if (isGrid() || ((post.isOP && boardCatalogMode && post.replies > 0) || (post.getRepliesFrom().size() > 0))) {
             repliesCountView.setVisibility(View.VISIBLE);
 
             String text = "";
 
-            int count = boardCatalogMode ? post.replies : post.repliesFrom.size();
+            int count = boardCatalogMode ? post.replies : post.getRepliesFrom().size();
 
             if (count != 1) {
                 text = count + " " + context.getString(R.string.multiple_replies);
@@ -19,6 +19,9 @@ import org.floens.chan.ChanApplication;
 
 public class ThumbnailView extends View implements ImageLoader.ImageListener {
     private ImageLoader.ImageContainer container;
+    private String url;
+    private int maxWidth;
+    private int maxHeight;
     private int fadeTime = 200;
 
     private boolean circular = false;
@@ -60,10 +63,13 @@ public class ThumbnailView extends View implements ImageLoader.ImageListener {
         if (container != null) {
             container.cancelRequest();
             container = null;
-            setImageBitmap(null);
         }
+        setImageBitmap(null);
 
-        if (!TextUtils.isEmpty(url)) {
+        this.url = TextUtils.isEmpty(url) ? null : url;
+        maxWidth = width;
+        maxHeight = height;
+        if (this.url != null) {
             container = ChanApplication.getVolleyImageLoader().get(url, this, width, height);
         }
     }
@@ -100,6 +106,27 @@ public class ThumbnailView extends View implements ImageLoader.ImageListener {
         error.printStackTrace();
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+
+        // Request again if it was cancelled when scrolled off the screen, a newer request is served first
+        if (url != null && container == null) {
+            container = ChanApplication.getVolleyImageLoader().get(url, this, maxWidth, maxHeight);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        // Recycled or scrolled off the screen, stop waiting for a thumbnail that is not visible anymore
+        if (container != null && bitmap == null) {
+            container.cancelRequest();
+            container = null;
+        }
+    }
+
     @Override
     protected boolean onSetAlpha(int alpha) {
         if (circular) {
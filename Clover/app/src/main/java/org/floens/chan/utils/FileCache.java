@@ -29,14 +29,34 @@ import com.squareup.okhttp.internal.Util;
 import org.floens.chan.ChanApplication;
 
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import okio.BufferedSource;
 
@@ -50,48 +70,126 @@ public class FileCache {
     private final File directory;
     private final long maxSize;
 
+    private static final String JOURNAL_NAME = "journal";
+    private static final String JOURNAL_TEMP_NAME = "journal.tmp";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // Partial downloads are kept with a sidecar holding the validator and total length, to resume them
+    private static final String PARTIAL_SUFFIX = ".partial";
+    private static final String PARTIAL_INFO_SUFFIX = ".partialinfo";
+    private static final long PARTIAL_MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    // File name to file size of the cached files, in access order. Guarded by this.
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(64, 0.75f, true);
     private long size;
+    private Writer journal;
+    private int journalOps;
+    // Pin count by file name of the files that may not be evicted. Guarded by this.
+    private final Map<String, Integer> pinned = new HashMap<>();
+    // Running downloads by url, only used on the ui thread
+    private final Map<String, Download> downloads = new HashMap<>();
 
     public FileCache(File directory, long maxSize) {
         this.directory = directory;
         this.maxSize = maxSize;
 
-        httpClient = new OkHttpClient();
+        httpClient = ChanApplication.getHttpClient();
         userAgent = ChanApplication.getReplyManager().getUserAgent();
 
         makeDir();
-        calculateSize();
+        loadIndex();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteOldPartials();
+            }
+        });
     }
 
+    /**
+     * Get the file for the key. The name is the SHA-1 of the key, so different keys do not share a file.
+     */
     public File get(String key) {
         makeDir();
 
-        return new File(directory, Integer.toString(key.hashCode()));
+        return new File(directory, hashKey(key));
     }
 
-    public void put(File file) {
-        size += file.length();
+    public synchronized void put(File file) {
+        long length = file.length();
+        Long previous = index.put(file.getName(), length);
+        size += length - (previous == null ? 0 : previous);
+        writeJournal("A " + file.getName() + " " + length);
 
         trim();
     }
 
-    public boolean delete(File file) {
-        size -= file.length();
+    public synchronized boolean delete(File file) {
+        Long previous = index.remove(file.getName());
+        if (previous != null) {
+            size -= previous;
+            writeJournal("R " + file.getName());
+        }
 
         return file.delete();
     }
 
-    public Future<?> downloadFile(final String urlString, final DownloadedCallback callback) {
+    /**
+     * Keep the file from being evicted until {@link #unpin(File)}, it may not exist yet.
+     */
+    public synchronized void pin(File file) {
+        Integer count = pinned.get(file.getName());
+        pinned.put(file.getName(), count == null ? 1 : count + 1);
+    }
+
+    public synchronized void unpin(File file) {
+        Integer count = pinned.get(file.getName());
+        if (count == null || count <= 1) {
+            pinned.remove(file.getName());
+            trim();
+        } else {
+            pinned.put(file.getName(), count - 1);
+        }
+    }
+
+    /**
+     * Mark the file as used, it is evicted last. Called on the ui thread, the journal is not flushed for it, touches
+     * are written with the next add or remove.
+     */
+    private synchronized void touch(File file) {
+        if (index.get(file.getName()) != null) {
+            writeJournal("T " + file.getName(), false);
+        }
+    }
+
+    /**
+     * Download the file, or get it from the cache. A download of a url that is already downloading is joined,
+     * the callback gets the progress and result of that download. Must be called on the ui thread.
+     *
+     * @return the request to cancel, or null if the file was cached and the callback was already called
+     */
+    public DownloadRequest downloadFile(final String urlString, final DownloadedCallback callback) {
         File file = get(urlString);
         if (file.exists()) {
-            file.setLastModified(Time.get());
+            touch(file);
             callback.onProgress(0, 0, true);
             callback.onSuccess(file);
             return null;
+        }
+
+        Download download = downloads.get(urlString);
+        if (download == null) {
+            download = new Download(urlString, file);
+            downloads.put(urlString, download);
+            download.callbacks.add(callback);
+            download.start();
         } else {
-            FileCacheDownloader downloader = new FileCacheDownloader(this, urlString, file, callback);
-            return executor.submit(downloader);
+            // A cancelled download that is still stopping starts again when it stopped
+            Logger.d(TAG, "Joining the download of " + urlString);
+            download.callbacks.add(callback);
         }
+
+        return new DownloadRequest(download, callback);
     }
 
     private void makeDir() {
@@ -99,52 +197,407 @@ public class FileCache {
             if (!directory.mkdirs()) {
                 Logger.e(TAG, "Unable to create file cache dir " + directory.getAbsolutePath());
             } else {
-                calculateSize();
+                // The directory was removed with everything in it
+                synchronized (this) {
+                    IOUtils.closeQuietly(journal);
+                    journal = null;
+                    index.clear();
+                    size = 0;
+                    rewriteJournal();
+                }
             }
         }
     }
 
+    /**
+     * Evict the least recently used files until the size is below maxSize. Must be called while synchronized.
+     */
     private void trim() {
-        int tries = 0;
-        while (size > maxSize && tries++ < 10) {
-            File[] files = directory.listFiles();
-            if (files == null) {
-                break;
-            }
-            long age = Long.MAX_VALUE;
-            long last;
-            File oldest = null;
-            for (File file : files) {
-                last = file.lastModified();
-                if (last < age && last != 0L) {
-                    age = last;
-                    oldest = file;
-                }
+        Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            if (pinned.containsKey(eldest.getKey())) {
+                continue;
+            }
+            iterator.remove();
+            size -= eldest.getValue();
+            writeJournal("R " + eldest.getKey());
+
+            File file = new File(directory, eldest.getKey());
+            Logger.d(TAG, "Deleting " + file.getAbsolutePath());
+            if (file.exists() && !file.delete()) {
+                Logger.e(TAG, "Cannot delete cache file " + file.getName());
             }
+        }
+    }
 
-            if (oldest == null) {
-                Log.e(TAG, "No files to trim");
-                break;
-            } else {
-                Log.d(TAG, "Deleting " + oldest.getAbsolutePath());
-                if (!delete(oldest)) {
-                    Log.e(TAG, "Cannot delete cache file");
-                    calculateSize();
-                    break;
+    /**
+     * Load the index from the journal, or from the files in the directory if there is no usable journal.
+     * The journal is a line per operation: "A name size" added, "R name" removed and "T name" used.
+     */
+    private synchronized void loadIndex() {
+        long start = Time.get();
+        File journalFile = new File(directory, JOURNAL_NAME);
+        boolean loaded = false;
+        if (journalFile.exists()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+                String line;
+                String invalid = null;
+                while ((line = reader.readLine()) != null) {
+                    if (invalid != null) {
+                        throw new IllegalArgumentException("Invalid journal line " + invalid);
+                    }
+                    try {
+                        readJournalLine(line);
+                    } catch (IllegalArgumentException e) {
+                        // A truncated last line, from being killed while writing it, is ignored
+                        invalid = line;
+                    }
                 }
+                loaded = true;
+            } catch (IOException | RuntimeException e) {
+                Logger.e(TAG, "Error reading the file cache journal, rebuilding it", e);
+                index.clear();
+                size = 0;
+            } finally {
+                IOUtils.closeQuietly(reader);
             }
+        }
 
-            calculateSize();
+        if (loaded) {
+            indexUnjournaledFiles();
+        } else {
+            indexDirectory();
         }
+
+        // Compacts the journal, the operations are in the index now
+        rewriteJournal();
+        trim();
+        Logger.d(TAG, "Loaded the index of " + index.size() + " files, " + size + " bytes, took " + Time.get(start) + "ms");
     }
 
-    private void calculateSize() {
+    private void readJournalLine(String line) {
+        String[] parts = line.split(" ");
+        if (parts.length == 3 && parts[0].equals("A")) {
+            long length = Long.parseLong(parts[2]);
+            Long previous = index.put(parts[1], length);
+            size += length - (previous == null ? 0 : previous);
+        } else if (parts.length == 2 && parts[0].equals("R")) {
+            Long previous = index.remove(parts[1]);
+            if (previous != null) {
+                size -= previous;
+            }
+        } else if (parts.length == 2 && parts[0].equals("T")) {
+            index.get(parts[1]);
+        } else {
+            throw new IllegalArgumentException("Invalid journal line " + line);
+        }
+    }
+
+    /**
+     * Build the index from the files, oldest first. Only done when there is no journal yet.
+     */
+    private void indexDirectory() {
+        index.clear();
         size = 0;
 
         File[] files = directory.listFiles();
         if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    long l = lhs.lastModified();
+                    long r = rhs.lastModified();
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+
             for (File file : files) {
+                if (isCachedFile(file)) {
+                    index.put(file.getName(), file.length());
+                    size += file.length();
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the files that are missing from the journal, from being killed between finishing a download and writing
+     * it to the journal, so they are counted and evicted.
+     */
+    private void indexUnjournaledFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        int added = 0;
+        for (File file : files) {
+            if (isCachedFile(file) && !index.containsKey(file.getName())) {
+                index.put(file.getName(), file.length());
                 size += file.length();
+                added++;
+            }
+        }
+
+        if (added > 0) {
+            Logger.w(TAG, "Indexed " + added + " files missing from the journal");
+        }
+    }
+
+    private boolean isCachedFile(File file) {
+        String name = file.getName();
+        return file.isFile() && !name.startsWith(JOURNAL_NAME) && !name.endsWith(PARTIAL_SUFFIX) &&
+                !name.endsWith(PARTIAL_INFO_SUFFIX);
+    }
+
+    /**
+     * Write the index as a new journal, must be called while synchronized.
+     */
+    private void rewriteJournal() {
+        IOUtils.closeQuietly(journal);
+        journal = null;
+
+        File temp = new File(directory, JOURNAL_TEMP_NAME);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+            // Iterating does not change the access order
+            for (Map.Entry<String, Long> entry : index.entrySet()) {
+                writer.write("A " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+            writer.close();
+            writer = null;
+
+            File journalFile = new File(directory, JOURNAL_NAME);
+            if (!temp.renameTo(journalFile)) {
+                throw new IOException("Could not rename the journal");
+            }
+
+            journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8"));
+            journalOps = 0;
+        } catch (IOException e) {
+            Logger.e(TAG, "Error writing the file cache journal", e);
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Append an operation to the journal and flush it, must be called while synchronized.
+     */
+    private void writeJournal(String line) {
+        writeJournal(line, true);
+    }
+
+    /**
+     * Append an operation to the journal, must be called while synchronized.
+     *
+     * @param flush false to only buffer the operation, it is also not compacted then
+     */
+    private void writeJournal(String line, boolean flush) {
+        if (journal == null) {
+            return;
+        }
+
+        try {
+            journal.write(line);
+            journal.write('\n');
+            if (flush) {
+                journal.flush();
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "Error writing to the file cache journal", e);
+        }
+
+        // Compact when the journal is mostly operations on files that are gone or were used again
+        if (++journalOps > 2000 && journalOps > index.size() * 2 && flush) {
+            rewriteJournal();
+        }
+    }
+
+    /**
+     * Partial downloads are not in the index, delete the ones that were not resumed for a while.
+     */
+    private void deleteOldPartials() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long now = Time.get();
+        for (File file : files) {
+            String name = file.getName();
+            if ((name.endsWith(PARTIAL_SUFFIX) || name.endsWith(PARTIAL_INFO_SUFFIX)) &&
+                    now - file.lastModified() > PARTIAL_MAX_AGE) {
+                Logger.d(TAG, "Deleting old partial download " + name);
+                if (!file.delete()) {
+                    Logger.e(TAG, "Cannot delete partial download " + name);
+                }
+            }
+        }
+    }
+
+    private static String hashKey(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+                hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public class DownloadRequest {
+        private final Download download;
+        private final DownloadedCallback callback;
+
+        private DownloadRequest(Download download, DownloadedCallback callback) {
+            this.download = download;
+            this.callback = callback;
+        }
+
+        /**
+         * Stop getting callbacks. The download is cancelled when no one else is waiting for it.
+         */
+        public void cancel() {
+            download.remove(callback);
+        }
+    }
+
+    /**
+     * A running download, passes its progress and result on to everyone that is waiting for it.
+     * The downloaders post to this on the ui thread. A download stays in the downloads map until its downloader
+     * stopped, also when it was cancelled, so there is never more than one downloader writing the file of a url.
+     */
+    private class Download implements DownloadedCallback, Runnable {
+        private final String url;
+        private final File file;
+        // Only used on the ui thread
+        private final List<DownloadedCallback> callbacks = new ArrayList<>(1);
+        // Guarded by this
+        private boolean cancelled = false;
+        private Thread thread;
+        private Runnable downloader;
+
+        public Download(String url, File file) {
+            this.url = url;
+            this.file = file;
+        }
+
+        public void start() {
+            if (file.exists()) {
+                downloads.remove(url);
+                touch(file);
+                onProgress(0, 0, true);
+                onSuccess(file);
+                return;
+            }
+
+            // Copy the file from an opened thread archive instead of downloading it
+            InputStream archived = ChanApplication.getArchiveManager().openFile(url);
+            if (archived != null) {
+                downloader = new ArchiveCopier(FileCache.this, archived, file, this);
+            } else {
+                downloader = new FileCacheDownloader(FileCache.this, url, file, this);
+            }
+            executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            boolean run;
+            synchronized (this) {
+                run = !cancelled;
+                if (run) {
+                    thread = Thread.currentThread();
+                }
+            }
+
+            try {
+                if (run) {
+                    downloader.run();
+                }
+            } finally {
+                synchronized (this) {
+                    thread = null;
+                    // Clear an interrupt from cancel, the executor thread is reused
+                    Thread.interrupted();
+                }
+
+                AndroidUtils.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        stopped();
+                    }
+                });
+            }
+        }
+
+        public void remove(DownloadedCallback callback) {
+            if (callbacks.remove(callback) && callbacks.isEmpty()) {
+                synchronized (this) {
+                    cancelled = true;
+                    if (thread != null) {
+                        thread.interrupt();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onProgress(long downloaded, long total, boolean done) {
+            // Copied, a callback can cancel its request
+            for (DownloadedCallback callback : new ArrayList<>(callbacks)) {
+                callback.onProgress(downloaded, total, done);
+            }
+        }
+
+        @Override
+        public void onSuccess(File file) {
+            List<DownloadedCallback> waiting = new ArrayList<>(callbacks);
+            callbacks.clear();
+            for (DownloadedCallback callback : waiting) {
+                callback.onSuccess(file);
+            }
+        }
+
+        @Override
+        public void onFail(boolean notFound) {
+            synchronized (this) {
+                // Failed because it was cancelled, the callbacks that joined after get it from the restart
+                if (cancelled) {
+                    return;
+                }
+            }
+
+            List<DownloadedCallback> waiting = new ArrayList<>(callbacks);
+            callbacks.clear();
+            for (DownloadedCallback callback : waiting) {
+                callback.onFail(notFound);
+            }
+        }
+
+        /**
+         * The downloader stopped. Starts it again if callbacks joined after it was cancelled.
+         */
+        private void stopped() {
+            boolean restart;
+            synchronized (this) {
+                restart = cancelled && !callbacks.isEmpty();
+                cancelled = false;
+            }
+
+            if (restart) {
+                start();
+            } else {
+                downloads.remove(url);
             }
         }
     }
@@ -157,10 +610,63 @@ public class FileCache {
         void onFail(boolean notFound);
     }
 
+    private static class ArchiveCopier implements Runnable {
+        private final FileCache fileCache;
+        private final InputStream input;
+        private final File output;
+        private final DownloadedCallback callback;
+
+        public ArchiveCopier(FileCache fileCache, InputStream input, File output, DownloadedCallback callback) {
+            this.fileCache = fileCache;
+            this.input = input;
+            this.output = output;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            OutputStream os = null;
+            boolean success = false;
+            try {
+                os = new BufferedOutputStream(new FileOutputStream(output));
+                IOUtils.copy(input, os);
+                os.close();
+                os = null;
+                success = true;
+            } catch (IOException e) {
+                Log.w(TAG, "IOException copying archived file", e);
+            } finally {
+                IOUtils.closeQuietly(os);
+                IOUtils.closeQuietly(input);
+            }
+
+            if (success) {
+                fileCache.put(output);
+            } else if (output.exists() && !output.delete()) {
+                Log.w(TAG, "Could not delete the file after a failed copy");
+            }
+
+            final boolean result = success;
+            AndroidUtils.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onProgress(0, 0, true);
+                    if (result) {
+                        callback.onSuccess(output);
+                    } else {
+                        callback.onFail(false);
+                    }
+                }
+            });
+        }
+    }
+
     private static class FileCacheDownloader implements Runnable {
         private final FileCache fileCache;
         private final String url;
         private final File output;
+        private final File partial;
+        private final File partialInfo;
         private final DownloadedCallback callback;
         private boolean cancelled = false;
 
@@ -173,6 +679,8 @@ public class FileCache {
             this.fileCache = fileCache;
             this.url = url;
             this.output = output;
+            partial = new File(output.getParentFile(), output.getName() + PARTIAL_SUFFIX);
+            partialInfo = new File(output.getParentFile(), output.getName() + PARTIAL_INFO_SUFFIX);
             this.callback = callback;
         }
 
@@ -194,7 +702,7 @@ public class FileCache {
 
             Log.w(TAG, "IOException downloading file", e);
 
-            purgeOutput();
+            // The partial file is kept, the next download resumes it
 
             post(new Runnable() {
                 @Override
@@ -228,12 +736,18 @@ public class FileCache {
 
             Log.d(TAG, "Cancel due to cancellation");
 
-            purgeOutput();
+            // The partial file is kept, the next download resumes it
 
             // No callback
         }
 
-        private void success() {
+        private void success() throws IOException {
+            if (!partial.renameTo(output)) {
+                throw new IOException("Could not rename the partial download");
+            }
+            if (!partialInfo.delete()) {
+                Log.w(TAG, "Could not delete the partial download info");
+            }
             fileCache.put(output);
 
             post(new Runnable() {
@@ -262,11 +776,85 @@ public class FileCache {
         }
 
         private void purgeOutput() {
-            if (output.exists()) {
-                if (!output.delete()) {
-                    Log.w(TAG, "Could not delete the file in purgeOutput");
+            if (partial.exists() && !partial.delete()) {
+                Log.w(TAG, "Could not delete the file in purgeOutput");
+            }
+            if (partialInfo.exists() && !partialInfo.delete()) {
+                Log.w(TAG, "Could not delete the partial info in purgeOutput");
+            }
+        }
+
+        /**
+         * @return the validator of the partial download and its total length, or null if it cannot be resumed
+         */
+        private PartialInfo readPartialInfo() {
+            if (!partial.exists() || !partialInfo.exists()) {
+                return null;
+            }
+
+            DataInputStream is = null;
+            try {
+                is = new DataInputStream(new FileInputStream(partialInfo));
+                PartialInfo info = new PartialInfo();
+                info.validator = is.readUTF();
+                info.total = is.readLong();
+                return info;
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read the partial download info", e);
+                return null;
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+        }
+
+        /**
+         * Store the validator of a new download, or delete the info when the response cannot be resumed.
+         */
+        private void writePartialInfo(String validator, long total) throws IOException {
+            if (validator == null || total <= 0) {
+                if (partialInfo.exists() && !partialInfo.delete()) {
+                    throw new IOException("Could not delete the partial download info");
+                }
+                return;
+            }
+
+            DataOutputStream os = null;
+            try {
+                os = new DataOutputStream(new FileOutputStream(partialInfo));
+                os.writeUTF(validator);
+                os.writeLong(total);
+            } finally {
+                IOUtils.closeQuietly(os);
+            }
+        }
+
+        /**
+         * A strong ETag, or the Last-Modified date. Weak ETags cannot be used for ranges.
+         */
+        private String getValidator(Response response) {
+            String etag = response.header("ETag");
+            if (etag != null && !etag.startsWith("W/")) {
+                return etag;
+            }
+            return response.header("Last-Modified");
+        }
+
+        /**
+         * @return the start of the range of a partial content response, or -1 if it cannot be parsed
+         */
+        private long getRangeStart(Response response) {
+            // bytes start-end/total
+            String range = response.header("Content-Range");
+            if (range != null && range.startsWith("bytes ")) {
+                int dash = range.indexOf('-');
+                if (dash > 6) {
+                    try {
+                        return Long.parseLong(range.substring(6, dash).trim());
+                    } catch (NumberFormatException ignored) {
+                    }
                 }
             }
+            return -1;
         }
 
         private long progressDownloaded;
@@ -291,12 +879,32 @@ public class FileCache {
         }
 
         private void execute() throws Exception {
-            Request request = new Request.Builder()
+            PartialInfo info = readPartialInfo();
+            long offset = info == null ? 0 : partial.length();
+            if (info != null && offset >= info.total) {
+                if (offset == info.total) {
+                    // Killed after the last byte but before the rename, a range request would get a 416
+                    Log.d(TAG, "Partial download was already complete");
+                    success();
+                    return;
+                }
+                purgeOutput();
+                info = null;
+                offset = 0;
+            }
+
+            Request.Builder builder = new Request.Builder()
                     .url(url)
                     .header("User-Agent", FileCache.userAgent)
-                    .build();
+                    // Ranges of a gzipped response do not match the file
+                    .header("Accept-Encoding", "identity");
+            if (offset > 0) {
+                // The server sends the whole file again if it changed since the partial download
+                builder.header("Range", "bytes=" + offset + "-");
+                builder.header("If-Range", info.validator);
+            }
 
-            call = fileCache.httpClient.newCall(request);
+            call = fileCache.httpClient.newCall(builder.build());
             Response response = call.execute();
             if (!response.isSuccessful()) {
                 cancelDueToHttpError(response.code());
@@ -305,15 +913,29 @@ public class FileCache {
 
             body = response.body();
             long contentLength = body.contentLength();
+            boolean resumed = offset > 0 && response.code() == 206;
+            if (resumed && getRangeStart(response) != offset) {
+                // Not the range that was asked for, start over next time
+                purgeOutput();
+                throw new IOException("Unexpected range " + response.header("Content-Range"));
+            }
+            if (resumed) {
+                Log.d(TAG, "Resuming download at " + offset + " of " + info.total);
+                contentLength = info.total;
+            } else {
+                offset = 0;
+                writePartialInfo(getValidator(response), contentLength);
+            }
+
             BufferedSource source = body.source();
-            OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(output));
+            OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(partial, resumed));
 
             downloadInput = source;
             downloadOutput = outputStream;
 
             int read;
-            long total = 0;
-            long totalLast = 0;
+            long total = offset;
+            long totalLast = offset;
             byte[] buffer = new byte[4096];
             while ((read = source.read(buffer)) != -1) {
                 outputStream.write(buffer, 0, read);
@@ -327,7 +949,14 @@ public class FileCache {
 
             if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException();
 
+            outputStream.close();
+            downloadOutput = null;
             success();
         }
     }
+
+    private static class PartialInfo {
+        public String validator;
+        public long total;
+    }
 }
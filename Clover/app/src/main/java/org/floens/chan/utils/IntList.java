@@ -0,0 +1,141 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.floens.chan.utils;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of ints, without boxing every item like a List&lt;Integer&gt;.
+ * Iterate with {@link #size()} and {@link #get(int)}.
+ */
+public class IntList {
+    private static final int[] EMPTY = new int[0];
+
+    private int[] items;
+    private int size;
+
+    public IntList() {
+        items = EMPTY;
+    }
+
+    public IntList(int capacity) {
+        items = capacity == 0 ? EMPTY : new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return items[index];
+    }
+
+    public void add(int value) {
+        if (size == items.length) {
+            items = Arrays.copyOf(items, Math.max(4, size * 2));
+        }
+        items[size++] = value;
+    }
+
+    public int indexOf(int value) {
+        for (int i = 0; i < size; i++) {
+            if (items[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean contains(int value) {
+        return indexOf(value) >= 0;
+    }
+
+    /**
+     * Remove all items. The backing array is kept, so refilling the list does not allocate.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(items, size);
+    }
+
+    /**
+     * @return a view of this list that throws on modification. Changes to this list are visible in the view.
+     */
+    public IntList readOnly() {
+        return new ReadOnlyIntList(this);
+    }
+
+    private static class ReadOnlyIntList extends IntList {
+        private final IntList source;
+
+        public ReadOnlyIntList(IntList source) {
+            super(0);
+            this.source = source;
+        }
+
+        @Override
+        public int size() {
+            return source.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return source.isEmpty();
+        }
+
+        @Override
+        public int get(int index) {
+            return source.get(index);
+        }
+
+        @Override
+        public int indexOf(int value) {
+            return source.indexOf(value);
+        }
+
+        @Override
+        public int[] toArray() {
+            return source.toArray();
+        }
+
+        @Override
+        public IntList readOnly() {
+            return this;
+        }
+
+        @Override
+        public void add(int value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
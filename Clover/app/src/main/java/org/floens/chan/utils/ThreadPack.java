@@ -0,0 +1,406 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.floens.chan.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A single file holding named entries. Entries are only ever appended, followed by an index of all entries and a
+ * footer pointing to the index. Appending more entries later writes a new index after them, an entry with the same
+ * name as an earlier one replaces it.
+ * <pre>
+ * header:  int magic, int version
+ * entries: the bytes of every entry
+ * index:   int count, per entry: short name length, name utf-8 bytes, long offset, long length
+ * footer:  long index offset, int magic
+ * </pre>
+ * Reading maps the file in memory, opening only reads the index. The last valid footer is used, so a write that was
+ * interrupted before its footer leaves the previous version readable.
+ */
+public class ThreadPack implements Closeable {
+    private static final String TAG = "ThreadPack";
+
+    private static final int MAGIC = 0x434c504b;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int FOOTER_SIZE = 12;
+    // Smallest index entry, a name of zero bytes
+    private static final int MIN_INDEX_ENTRY_SIZE = 18;
+    // Packs with more bytes of replaced entries than of live ones are compacted when written, if at least this large
+    private static final long COMPACT_MIN_SIZE = 1024 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final Map<String, long[]> index;
+    // End of the last valid footer, the bytes after it are from an interrupted write
+    private final int end;
+
+    /**
+     * Open the pack for reading.
+     *
+     * @throws IOException when the file has no complete version of the pack
+     */
+    public ThreadPack(File packFile) throws IOException {
+        file = new RandomAccessFile(packFile, "r");
+        try {
+            long size = file.length();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Pack too large to map");
+            }
+
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < HEADER_SIZE + FOOTER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a pack");
+            }
+
+            int footerEnd = (int) size;
+            Map<String, long[]> readIndex = null;
+            while (readIndex == null) {
+                try {
+                    readIndex = readIndex(buffer, footerEnd);
+                } catch (IOException e) {
+                    footerEnd = findFooterEnd(buffer, footerEnd - 1);
+                    if (footerEnd < 0) {
+                        throw new IOException("Not a complete pack");
+                    }
+                }
+            }
+
+            if (footerEnd != size) {
+                Logger.w(TAG, "Ignoring " + (size - footerEnd) + " bytes of an interrupted write in " +
+                        packFile.getName());
+            }
+            index = readIndex;
+            end = footerEnd;
+        } catch (IOException e) {
+            IOUtils.closeQuietly(file);
+            throw e;
+        }
+    }
+
+    public boolean contains(String name) {
+        return index.containsKey(name);
+    }
+
+    /**
+     * @return a read only buffer of the entry, backed by the mapped file, or null if there is no such entry
+     */
+    public ByteBuffer get(String name) {
+        long[] entry = index.get(name);
+        if (entry == null) {
+            return null;
+        }
+
+        ByteBuffer entryBuffer = buffer.duplicate();
+        entryBuffer.position((int) entry[0]);
+        entryBuffer.limit((int) (entry[0] + entry[1]));
+        return entryBuffer.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return a stream of the entry, or null if there is no such entry
+     */
+    public InputStream open(String name) {
+        ByteBuffer entry = get(name);
+        return entry == null ? null : new ByteBufferInputStream(entry);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * @return the total length of the entries in the index
+     */
+    private long liveSize() {
+        long size = 0;
+        for (long[] entry : index.values()) {
+            size += entry[1];
+        }
+        return size;
+    }
+
+    /**
+     * Read the index of the footer that ends at footerEnd.
+     */
+    private static Map<String, long[]> readIndex(ByteBuffer buffer, int footerEnd) throws IOException {
+        if (footerEnd < HEADER_SIZE + FOOTER_SIZE || buffer.getInt(footerEnd - 4) != MAGIC) {
+            throw new IOException("No footer");
+        }
+
+        int indexEnd = footerEnd - FOOTER_SIZE;
+        long indexOffset = buffer.getLong(indexEnd);
+        if (indexOffset < HEADER_SIZE || indexOffset + 4 > indexEnd) {
+            throw new IOException("Invalid index offset");
+        }
+
+        try {
+            ByteBuffer indexBuffer = buffer.duplicate();
+            indexBuffer.limit(indexEnd);
+            indexBuffer.position((int) indexOffset);
+            int count = indexBuffer.getInt();
+            if (count < 0 || count > indexBuffer.remaining() / MIN_INDEX_ENTRY_SIZE) {
+                throw new IOException("Invalid index count");
+            }
+
+            Map<String, long[]> index = new HashMap<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[indexBuffer.getShort() & 0xffff];
+                indexBuffer.get(name);
+                long offset = indexBuffer.getLong();
+                long length = indexBuffer.getLong();
+                if (offset < HEADER_SIZE || length < 0 || offset + length > indexOffset) {
+                    throw new IOException("Invalid index entry");
+                }
+                index.put(new String(name, UTF_8), new long[]{offset, length});
+            }
+
+            if (indexBuffer.hasRemaining()) {
+                throw new IOException("Index does not end at the footer");
+            }
+            return index;
+        } catch (RuntimeException e) {
+            // Reading past the limit
+            throw new IOException("Invalid index", e);
+        }
+    }
+
+    /**
+     * Find the end of a possible footer before the given position, by searching backwards for the footer magic.
+     *
+     * @return the end of the footer, or -1 if there is none
+     */
+    private static int findFooterEnd(ByteBuffer buffer, int before) {
+        for (int position = before - 4; position >= HEADER_SIZE + FOOTER_SIZE - 4; position--) {
+            if (buffer.getInt(position) == MAGIC) {
+                return position + 4;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Appends entries to a pack, creating it if it does not exist or has no complete version. The new index and footer
+     * are written when the writer is closed, until then readers see the previous index. A write that is interrupted or
+     * aborted leaves the previous version.
+     * <p>
+     * When most of the pack is taken by replaced entries, the live entries are written to a new file instead, which
+     * replaces the pack when the writer is closed.
+     */
+    public static class Writer implements Closeable {
+        private final Map<String, long[]> index = new LinkedHashMap<>();
+        private final File packFile;
+        private final RandomAccessFile file;
+        private final DataOutputStream os;
+        // The temporary file when compacting, null when appending
+        private final File tempFile;
+        // The pack to copy the live entries of when compacting
+        private ThreadPack existing;
+        private final long start;
+        private long position;
+
+        public Writer(File packFile) throws IOException {
+            this.packFile = packFile;
+
+            ThreadPack previous = null;
+            if (packFile.exists()) {
+                try {
+                    previous = new ThreadPack(packFile);
+                } catch (IOException e) {
+                    Logger.w(TAG, "Overwriting incomplete pack " + packFile.getName());
+                }
+            }
+
+            boolean compact = false;
+            if (previous != null) {
+                long live = previous.liveSize();
+                compact = previous.end >= COMPACT_MIN_SIZE && previous.end - live > live;
+            }
+
+            if (compact) {
+                Logger.d(TAG, "Compacting " + packFile.getName());
+                tempFile = new File(packFile.getParentFile(), packFile.getName() + ".tmp");
+                existing = previous;
+                start = 0;
+            } else {
+                tempFile = null;
+                if (previous != null) {
+                    index.putAll(previous.index);
+                    // Overwrites the bytes of an interrupted write, readers do not read past their footer
+                    start = previous.end;
+                    IOUtils.closeQuietly(previous);
+                } else {
+                    start = 0;
+                }
+            }
+
+            try {
+                file = new RandomAccessFile(compact ? tempFile : packFile, "rw");
+            } catch (IOException e) {
+                IOUtils.closeQuietly(existing);
+                throw e;
+            }
+
+            file.seek(start);
+            // Shares the position of the file
+            os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.getFD())));
+            position = start;
+            if (start == 0) {
+                os.writeInt(MAGIC);
+                os.writeInt(VERSION);
+                position = HEADER_SIZE;
+            }
+        }
+
+        public boolean contains(String name) {
+            return index.containsKey(name) || (existing != null && existing.contains(name));
+        }
+
+        public void add(String name, byte[] data) throws IOException {
+            os.write(data);
+            index.put(name, new long[]{position, data.length});
+            position += data.length;
+        }
+
+        public void add(String name, InputStream is) throws IOException {
+            long start = position;
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+                position += read;
+            }
+            index.put(name, new long[]{start, position - start});
+        }
+
+        /**
+         * Write the index and the footer. When compacting the written file replaces the pack.
+         */
+        @Override
+        public void close() throws IOException {
+            boolean written = false;
+            try {
+                if (existing != null) {
+                    for (String name : existing.index.keySet()) {
+                        if (!index.containsKey(name)) {
+                            add(name, existing.open(name));
+                        }
+                    }
+                    existing.close();
+                    existing = null;
+                }
+
+                long indexOffset = position;
+                os.writeInt(index.size());
+                position += 4;
+                for (Map.Entry<String, long[]> entry : index.entrySet()) {
+                    byte[] name = entry.getKey().getBytes(UTF_8);
+                    os.writeShort(name.length);
+                    os.write(name);
+                    os.writeLong(entry.getValue()[0]);
+                    os.writeLong(entry.getValue()[1]);
+                    position += 2 + name.length + 16;
+                }
+                os.writeLong(indexOffset);
+                os.writeInt(MAGIC);
+                position += FOOTER_SIZE;
+                os.flush();
+                // Drop the rest of an interrupted write that was longer than this one
+                file.setLength(position);
+                file.close();
+
+                if (tempFile != null && !tempFile.renameTo(packFile)) {
+                    throw new IOException("Could not rename " + tempFile.getName());
+                }
+                written = true;
+            } finally {
+                if (!written) {
+                    abort();
+                }
+            }
+        }
+
+        /**
+         * Stop writing, the previous version of the pack is kept.
+         */
+        public void abort() {
+            IOUtils.closeQuietly(existing);
+            existing = null;
+            if (tempFile != null) {
+                IOUtils.closeQuietly(file);
+                if (tempFile.exists() && !tempFile.delete()) {
+                    Logger.e(TAG, "Could not delete " + tempFile.getName());
+                }
+            } else {
+                try {
+                    // Readers do not read past their footer
+                    file.setLength(start);
+                } catch (IOException e) {
+                    Logger.w(TAG, "Could not truncate " + packFile.getName(), e);
+                } finally {
+                    IOUtils.closeQuietly(file);
+                }
+            }
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return buffer.remaining();
+        }
+    }
+}